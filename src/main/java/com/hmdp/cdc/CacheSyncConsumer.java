@@ -0,0 +1,164 @@
+package com.hmdp.cdc;
+
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.SoldOutMarker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_SHOP_KEY;
+
+/**
+ * 根据行变更同步缓存
+ * <p>
+ * 单线程按顺序消费变更，一批变更合并成一次布隆过滤器更新和一次批量失效，
+ * 写数据库的代码不再需要各自记得删除缓存。缓存操作都是幂等的，多个节点同时消费也不会出错
+ */
+@Slf4j
+@Component
+public class CacheSyncConsumer {
+
+    @Resource
+    private ChangeSource changeSource;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Value("${hmdp.cdc.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cdc.batch-size:500}")
+    private int batchSize;
+
+    @Value("${hmdp.cdc.poll-interval-millis:200}")
+    private long pollIntervalMillis;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong lastLagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::drain, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 拉取并处理变更，直到数据源中没有剩余
+     */
+    private void drain() {
+        try {
+            List<RowChange> changes;
+            do {
+                changes = changeSource.poll(batchSize);
+                if (changes.isEmpty()) {
+                    return;
+                }
+                apply(changes);
+                changeSource.ack(changes);
+            } while (changes.size() == batchSize);
+        } catch (Exception e) {
+            // 未确认的变更下次会被重新拉取
+            errors.increment();
+            log.error("同步缓存变更失败", e);
+        }
+    }
+
+    /**
+     * 把一批变更转换为缓存操作
+     */
+    void apply(List<RowChange> changes) {
+        Set<String> keys = new LinkedHashSet<>();
+        List<Long> newShops = new ArrayList<>();
+        Set<Long> seckillVouchers = new LinkedHashSet<>();
+        for (RowChange change : changes) {
+            switch (change.getTable()) {
+                case "tb_shop":
+                    // 新增的店铺要加入布隆过滤器，同时删除之前可能缓存的空值
+                    if (RowChange.INSERT.equals(change.getOp())) {
+                        newShops.add(change.getRowId());
+                    }
+                    keys.add(CACHE_SHOP_KEY + change.getRowId());
+                    break;
+                case "tb_seckill_voucher":
+                case "tb_voucher":
+                    if ("tb_seckill_voucher".equals(change.getTable())) {
+                        // 秒杀时间或库存被修改，清除各节点的售罄标记，以Redis中的库存为准，并同步秒杀时间
+                        soldOutMarker.reset(change.getRowId());
+                        seckillVouchers.add(change.getRowId());
+                    }
+                    // 店铺的优惠券列表包含了秒杀券信息
+                    if (change.getShopId() != null) {
+                        keys.add(CACHE_VOUCHER_SHOP_KEY + change.getShopId());
+                    }
+                    break;
+                default:
+                    log.warn("未知的变更表: {}", change.getTable());
+            }
+        }
+        // 1.先加入布隆过滤器，再删除缓存，避免删除后的查询被布隆过滤器拦截
+        newShops.forEach(id -> cacheClient.addToBloomFilter(CACHE_SHOP_KEY, id));
+        // 2.批量失效
+        cacheInvalidator.invalidateAll(keys);
+        // 2.1.秒杀时间同步到Redis
+        seckillVouchers.forEach(voucherService::syncSeckillWindow);
+        // 3.统计
+        long lag = System.currentTimeMillis() - changes.get(0).getTimestamp();
+        lastLagMillis.set(lag);
+        maxLagMillis.accumulateAndGet(lag, Math::max);
+        applied.add(changes.size());
+        batches.increment();
+    }
+
+    /**
+     * 同步的变更数量与延迟(从数据库变更到缓存失效的时间)
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("source", changeSource.getClass().getSimpleName());
+        stats.put("applied", applied.sum());
+        stats.put("batches", batches.sum());
+        stats.put("errors", errors.sum());
+        stats.put("lastLagMillis", lastLagMillis.get());
+        stats.put("maxLagMillis", maxLagMillis.get());
+        return stats;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,21 @@
+package com.hmdp.cdc;
+
+import java.util.List;
+
+/**
+ * 行变更的数据源，可以是binlog订阅，也可以是发件箱表
+ */
+public interface ChangeSource {
+
+    /**
+     * 拉取一批尚未确认的变更，按发生顺序排列
+     * @param maxBatch 最多拉取的条数
+     * @return 没有变更时返回空集合
+     */
+    List<RowChange> poll(int maxBatch);
+
+    /**
+     * 确认一批变更已处理，之后不会再被拉取
+     */
+    void ack(List<RowChange> changes);
+}
@@ -0,0 +1,42 @@
+package com.hmdp.cdc;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 以发件箱表 tb_cache_outbox 作为binlog的替代
+ * <p>
+ * 自增id的分配顺序与事务提交顺序不一定相同，因此不记录消费位置，
+ * 而是每次从表中剩余的行里按id顺序拉取，处理完成后按id删除，晚提交的小id也不会被跳过
+ */
+@Component
+public class OutboxChangeSource implements ChangeSource {
+
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+
+    @Override
+    public List<RowChange> poll(int maxBatch) {
+        List<CacheOutbox> rows = cacheOutboxMapper.selectList(
+                new QueryWrapper<CacheOutbox>().orderByAsc("id").last("limit " + maxBatch));
+        return rows.stream()
+                .map(row -> new RowChange(row.getId(), row.getTableName(), row.getRowId(), row.getOp(), row.getShopId(),
+                        row.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void ack(List<RowChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        cacheOutboxMapper.deleteBatchIds(changes.stream().map(RowChange::getPosition).collect(Collectors.toList()));
+    }
+}
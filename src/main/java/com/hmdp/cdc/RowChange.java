@@ -0,0 +1,34 @@
+package com.hmdp.cdc;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 一行数据的变更
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RowChange {
+
+    public static final String INSERT = "I";
+    public static final String UPDATE = "U";
+    public static final String DELETE = "D";
+
+    /**
+     * 变更在数据源中的位置，用于确认消费
+     */
+    private Long position;
+    private String table;
+    private Long rowId;
+    private String op;
+    /**
+     * 优惠券所属的店铺id
+     */
+    private Long shopId;
+    /**
+     * 变更发生的时间(毫秒)
+     */
+    private long timestamp;
+}
@@ -0,0 +1,41 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheSerializer;
+import com.hmdp.utils.KryoCacheSerializer;
+import com.hmdp.utils.MigratingCacheSerializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        // 发布订阅的监听容器，用于接收缓存失效等广播消息
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /**
+     * 缓存值的序列化方式
+     * json: 兼容旧版本; binary: Kryo二进制格式; migrating: 写二进制，同时兼容读取JSON
+     */
+    @Bean
+    public CacheSerializer cacheSerializer(@Value("${hmdp.cache.serializer:migrating}") String type) {
+        switch (type) {
+            case "json":
+                return new JsonCacheSerializer();
+            case "binary":
+                return new KryoCacheSerializer();
+            case "migrating":
+                return new MigratingCacheSerializer();
+            default:
+                throw new IllegalArgumentException("未知的缓存序列化方式: " + type);
+        }
+    }
+}
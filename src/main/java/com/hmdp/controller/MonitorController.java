@@ -0,0 +1,167 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.cdc.CacheSyncConsumer;
+import com.hmdp.dto.Result;
+import com.hmdp.job.CacheWarmUpRunner;
+import com.hmdp.job.OrderStreamArchiver;
+import com.hmdp.job.SeckillStockReconciler;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ScriptRegistry;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillWindow;
+import com.hmdp.utils.SoldOutMarker;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 运行状态监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/monitor")
+public class MonitorController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Resource
+    private CacheSyncConsumer cacheSyncConsumer;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheWarmUpRunner cacheWarmUpRunner;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @Resource
+    private SeckillWindow seckillWindow;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private OrderStreamArchiver orderStreamArchiver;
+
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+
+    @Resource
+    private ScriptRegistry scriptRegistry;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    /**
+     * 查询各级缓存的命中情况
+     * @return 本地缓存、Redis、数据库的命中与加载次数
+     */
+    @GetMapping("/cache")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询缓存失效管道的运行情况
+     * @return 失效次数、重试队列长度、失效延迟
+     */
+    @GetMapping("/invalidation")
+    public Result invalidationStats() {
+        return Result.ok(cacheInvalidator.stats());
+    }
+
+    /**
+     * 查询数据变更同步缓存的情况
+     * @return 已同步的变更数量与延迟
+     */
+    @GetMapping("/cdc")
+    public Result cdcStats() {
+        return Result.ok(cacheSyncConsumer.stats());
+    }
+
+    /**
+     * 查询当前的热点key
+     * @return 热点key及其在统计窗口内的估算访问次数
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.topK());
+    }
+
+    /**
+     * 查询启动时缓存预热的结果
+     * @return 各阶段预热的数量和耗时
+     */
+    @GetMapping("/warm-up")
+    public Result warmUp() {
+        return Result.ok(cacheWarmUpRunner.getReport());
+    }
+
+    /**
+     * 查询秒杀的本地拦截情况
+     * @return 售罄的券、因此省去的请求数，时间窗口预检和限流拦截的请求数，订单状态查询情况
+     */
+    @GetMapping("/seckill")
+    public Result seckillStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(soldOutMarker.stats());
+        stats.put("window", seckillWindow.stats());
+        stats.put("rateLimit", seckillRateLimiter.stats());
+        stats.put("orderStatus", orderStatusTracker.stats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询订单消息队列的状态
+     * @return 各分区的长度、内存占用、消费延迟与归档情况
+     */
+    @GetMapping("/order-stream")
+    public Result orderStreamStats() {
+        return Result.ok(orderStreamArchiver.stats());
+    }
+
+    /**
+     * 查询秒杀库存对账的结果
+     * @return 最近一次对账发现的漂移和累计修复情况
+     */
+    @GetMapping("/reconcile")
+    public Result reconcileStats() {
+        return Result.ok(seckillStockReconciler.stats());
+    }
+
+    /**
+     * 查询Lua脚本的调用情况
+     * @return 各脚本的调用耗时分布、批量调用次数和重新加载次数
+     */
+    @GetMapping("/scripts")
+    public Result scriptStats() {
+        return Result.ok(scriptRegistry.stats());
+    }
+
+    /**
+     * 查询全局id生成器的号段申请情况
+     * @return 生成的id数、同步申请和预取号段的次数与耗时
+     */
+    @GetMapping("/id")
+    public Result idStats() {
+        return Result.ok(redisIdWorker.stats());
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存变更发件箱，由触发器在 tb_shop、tb_voucher、tb_seckill_voucher 变更时写入
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_outbox")
+public class CacheOutbox implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键，即变更的顺序
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 变更的表
+     */
+    private String tableName;
+
+    /**
+     * 变更行的主键
+     */
+    private Long rowId;
+
+    /**
+     * 变更类型 I：新增；U：修改；D：删除
+     */
+    private String op;
+
+    /**
+     * 优惠券所属的店铺id，店铺的变更为空
+     */
+    private Long shopId;
+
+    /**
+     * 变更时间
+     */
+    private LocalDateTime createTime;
+}
@@ -0,0 +1,231 @@
+package com.hmdp.job;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMode;
+import com.hmdp.utils.SeckillWindow;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_META_KEY;
+
+/**
+ * 缓存预热
+ * <p>
+ * ApplicationRunner 在应用发布 ReadinessState.ACCEPTING_TRAFFIC 之前执行，
+ * 预热完成前实例不会被判定为就绪，避免重启后缓存为空导致逻辑过期查询返回空、互斥锁查询压垮数据库
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillWindow seckillWindow;
+
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 最多预热的店铺数量，按销量从高到低选取
+     */
+    @Value("${hmdp.warm-up.key-budget:10000}")
+    private int keyBudget;
+
+    @Value("${hmdp.warm-up.batch-size:500}")
+    private int batchSize;
+
+    @Value("${hmdp.warm-up.parallelism:4}")
+    private int parallelism;
+
+    @Value("${hmdp.cache.shop.mode:MUTEX}")
+    private CacheMode shopCacheMode;
+
+    /**
+     * 最近一次预热的耗时统计，预热过程中在预热线程上写入，完成后整体替换，监控接口读取到的总是完整的结果
+     */
+    private volatile Map<String, Object> report = Collections.emptyMap();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        Map<String, Object> report = new LinkedHashMap<>();
+        try {
+            report.put("shops", timed(report, "shopMillis", this::warmUpShops));
+            report.put("shopTypes", timed(report, "shopTypeMillis", this::warmUpShopTypes));
+            report.put("seckillStocks", timed(report, "seckillStockMillis", this::warmUpSeckillStocks));
+        } catch (Exception e) {
+            // 预热失败不影响启动，缓存会在查询时重建
+            log.error("缓存预热失败", e);
+            report.put("error", e.toString());
+        }
+        report.put("totalMillis", System.currentTimeMillis() - begin);
+        this.report = Collections.unmodifiableMap(report);
+        log.info("缓存预热完成: {}", report);
+    }
+
+    public Map<String, Object> getReport() {
+        return report;
+    }
+
+    private long timed(Map<String, Object> report, String name, LongSupplier stage) {
+        long begin = System.currentTimeMillis();
+        long count = stage.getAsLong();
+        report.put(name, System.currentTimeMillis() - begin);
+        return count;
+    }
+
+    /**
+     * 预热店铺，按销量选出预算内的店铺id，再分批并行查询数据库、管道写入Redis
+     */
+    private long warmUpShops() {
+        // 1.只查id，按销量倒序取预算内的店铺
+        List<Long> ids = shopService.listObjs(
+                shopService.query().select("id").orderByDesc("sold").last("limit " + keyBudget),
+                id -> ((Number) id).longValue());
+        // 2.分批
+        List<List<Long>> batches = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            batches.add(ids.subList(i, Math.min(i + batchSize, ids.size())));
+        }
+        // 3.并行查询数据库并写入缓存
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        AtomicLong count = new AtomicLong();
+        try {
+            CompletableFuture.allOf(batches.stream()
+                    .map(batch -> CompletableFuture.runAsync(() -> {
+                        List<Shop> shops = shopService.listByIds(batch);
+                        cacheClient.setBatch(shopCacheMode, CACHE_SHOP_KEY, shops, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                        count.addAndGet(shops.size());
+                    }, executor))
+                    .toArray(CompletableFuture[]::new)).join();
+        } finally {
+            executor.shutdown();
+        }
+        return count.get();
+    }
+
+    private long warmUpShopTypes() {
+        // 查询时如果缓存不存在会自动写入
+        Result result = shopTypeService.queryTypeLists();
+        return result.getData() instanceof List ? ((List<?>) result.getData()).size() : 0;
+    }
+
+    /**
+     * 预热未结束的秒杀券库存和秒杀时间，库存只在Redis中不存在时写入，避免用数据库中滞后的库存覆盖Redis
+     * <p>
+     * 库存不存在说明Redis丢失了数据(或者从未初始化)，此时下单用户集合也已丢失，
+     * 需要先从订单表恢复已下单的用户，再写入库存，否则已下单的用户可以再次下单
+     */
+    private long warmUpSeckillStocks() {
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now())
+                .list();
+        if (vouchers.isEmpty()) {
+            return 0;
+        }
+        // 1.已分片的库存由分片key保存，不写入单个库存key
+        List<String> shards = stringRedisTemplate.opsForValue().multiGet(vouchers.stream()
+                .map(voucher -> SECKILL_STOCK_META_KEY + voucher.getVoucherId())
+                .collect(Collectors.toList()));
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(vouchers.stream()
+                .map(voucher -> SECKILL_STOCK_KEY + voucher.getVoucherId())
+                .collect(Collectors.toList()));
+        List<SeckillVoucher> missing = new ArrayList<>();
+        for (int i = 0; i < vouchers.size(); i++) {
+            if ((shards == null || shards.get(i) == null) && (stocks == null || stocks.get(i) == null)) {
+                missing.add(vouchers.get(i));
+            }
+        }
+        // 2.库存不存在的券，先恢复下单用户集合
+        for (SeckillVoucher voucher : missing) {
+            long restored = restoreBuyers(voucher.getVoucherId());
+            if (restored > 0) {
+                log.info("从订单表恢复秒杀券的下单用户, voucherId={}, users={}", voucher.getVoucherId(), restored);
+            }
+        }
+        // 3.再写入库存
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (SeckillVoucher voucher : missing) {
+                connection.setNX(
+                        (SECKILL_STOCK_KEY + voucher.getVoucherId()).getBytes(StandardCharsets.UTF_8),
+                        voucher.getStock().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        // 同步秒杀时间，由脚本检查
+        vouchers.forEach(voucher -> seckillWindow.write(voucher.getVoucherId(), voucher.getBeginTime(), voucher.getEndTime()));
+        return vouchers.size();
+    }
+
+    /**
+     * 按user_id分页读取订单表中购买了该券的用户，写回下单用户集合
+     */
+    private long restoreBuyers(Long voucherId) {
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        long restored = 0;
+        long afterUserId = 0;
+        List<Long> page;
+        do {
+            page = voucherOrderMapper.queryUserIdsOfVoucher(voucherId, afterUserId, batchSize);
+            if (page.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.opsForSet().add(orderKey, page.stream().map(String::valueOf).toArray(String[]::new));
+            restored += page.size();
+            afterUserId = page.get(page.size() - 1);
+        } while (page.size() == batchSize);
+        return restored;
+    }
+}
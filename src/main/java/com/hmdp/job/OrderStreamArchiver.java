@@ -0,0 +1,396 @@
+package com.hmdp.job;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.StreamPartitioner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_ARCHIVED_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_ARCHIVE_LOCK;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_ARCHIVE_OWNER;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * 订单消息队列的归档与裁剪
+ * <p>
+ * 消费者组确认过的消息不会自动删除，这里定时把所有消费者组都已处理完的消息(早于最早的pending消息，且已投递)
+ * 追加写入本地的分段文件，落盘后再用 XTRIM MINID 从Redis中删除，归档文件可以用 {@link #replay} 重放
+ * <p>
+ * 归档位置记录在Redis中由所有节点共享，而归档文件只在本地，所以固定由一台主机归档：
+ * 配置了 hmdp.seckill.order.archive.node 时为该主机，否则由持有归档租约的主机负责，
+ * 租约每次归档时续期，主机下线超过租约时间后由其它主机接替
+ */
+@Slf4j
+@Component
+public class OrderStreamArchiver {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+
+    @Value("${hmdp.seckill.order.archive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.order.archive.dir:data/stream-archive}")
+    private String dir;
+
+    /**
+     * 负责归档的主机名，为空时由持有租约的主机负责
+     */
+    @Value("${hmdp.seckill.order.archive.node:}")
+    private String archiveNode;
+
+    /**
+     * 归档主机的租约时间，主机下线超过该时间后由其它主机接替
+     */
+    @Value("${hmdp.seckill.order.archive.owner-lease-millis:600000}")
+    private long ownerLeaseMillis;
+
+    @Value("${hmdp.seckill.order.archive.interval-millis:60000}")
+    private long intervalMillis;
+
+    @Value("${hmdp.seckill.order.archive.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 单个分段文件的大小上限，超过后新建文件
+     */
+    @Value("${hmdp.seckill.order.archive.segment-bytes:67108864}")
+    private long segmentBytes;
+
+    private StreamPartitioner orderStreams;
+
+    private final String hostName = NetUtil.getLocalHostName();
+    private final String nodeId = hostName + "-" + RuntimeUtil.getPid();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, LongAdder> archived = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> trimmed = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        orderStreams = new StreamPartitioner(STREAM_ORDERS_KEY, partitions);
+        // 租约至少覆盖两次归档的间隔，否则归档主机会在两次续期之间失去租约
+        ownerLeaseMillis = Math.max(ownerLeaseMillis, intervalMillis * 2);
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::archiveAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    private void archiveAll() {
+        // 只由固定的主机归档，同一主机上的多个进程用锁互斥
+        if (!isArchiveHost()) {
+            return;
+        }
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(STREAM_ORDERS_ARCHIVE_LOCK, nodeId, intervalMillis, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        for (String streamKey : archivedStreams()) {
+            try {
+                archive(streamKey);
+            } catch (Exception e) {
+                log.error("归档订单消息失败: {}", streamKey, e);
+            }
+        }
+    }
+
+    /**
+     * 当前主机是否负责归档
+     */
+    private boolean isArchiveHost() {
+        if (StrUtil.isNotBlank(archiveNode)) {
+            return archiveNode.equals(hostName);
+        }
+        // 未配置时，由持有租约的主机负责：租约不存在时抢占，是自己的租约时续期
+        stringRedisTemplate.opsForValue().setIfAbsent(STREAM_ORDERS_ARCHIVE_OWNER, hostName, ownerLeaseMillis, TimeUnit.MILLISECONDS);
+        if (!hostName.equals(stringRedisTemplate.opsForValue().get(STREAM_ORDERS_ARCHIVE_OWNER))) {
+            return false;
+        }
+        stringRedisTemplate.expire(STREAM_ORDERS_ARCHIVE_OWNER, ownerLeaseMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * 需要归档的stream：各个分区，以及分区后仍存在的未分区 stream.orders
+     */
+    private List<String> archivedStreams() {
+        List<String> streamKeys = new ArrayList<>(orderStreams.keys());
+        if (!streamKeys.contains(STREAM_ORDERS_KEY) && Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_ORDERS_KEY))) {
+            streamKeys.add(STREAM_ORDERS_KEY);
+        }
+        return streamKeys;
+    }
+
+    /**
+     * 归档并裁剪一个stream
+     */
+    void archive(String streamKey) throws IOException {
+        // 1.计算所有消费者组都已处理完的位置，早于该位置的消息可以删除
+        long[] bound = completedBound(streamKey);
+        if (bound == null) {
+            return;
+        }
+        String archivedKey = STREAM_ORDERS_ARCHIVED_KEY + streamKey;
+        String last = stringRedisTemplate.opsForValue().get(archivedKey);
+        // 2.分批读取并写入分段文件
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                    Range.closed(last == null ? "-" : last, "+"), RedisZSetCommands.Limit.limit().count(batchSize));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            List<MapRecord<String, Object, Object>> done = new ArrayList<>();
+            boolean reachedBound = records.size() < batchSize;
+            for (MapRecord<String, Object, Object> record : records) {
+                String id = record.getId().getValue();
+                if (id.equals(last)) {
+                    continue;
+                }
+                if (compare(parse(id), bound) >= 0) {
+                    reachedBound = true;
+                    break;
+                }
+                done.add(record);
+            }
+            if (!done.isEmpty()) {
+                append(streamKey, done);
+                last = done.get(done.size() - 1).getId().getValue();
+                // 落盘之后再记录归档位置
+                stringRedisTemplate.opsForValue().set(archivedKey, last);
+                archived.computeIfAbsent(streamKey, k -> new LongAdder()).add(done.size());
+            }
+            if (reachedBound || done.isEmpty()) {
+                break;
+            }
+        }
+        if (last == null) {
+            return;
+        }
+        // 3.删除已归档的消息，只删除到已归档的位置
+        long[] lastArchived = parse(last);
+        String minId = lastArchived[0] + "-" + (lastArchived[1] + 1);
+        try {
+            // XTRIM key MINID ~ id，近似裁剪，按整个宏节点删除，效率更高
+            Object removed = stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute(
+                    "XTRIM", raw(streamKey), raw("MINID"), raw("~"), raw(minId)));
+            trimmed.computeIfAbsent(streamKey, k -> new LongAdder()).add(removed instanceof Long ? (Long) removed : 0);
+        } catch (Exception e) {
+            // Redis 6.2 之前不支持 MINID，逐批删除归档位置及之前的所有消息，包括之前的运行中删除失败的
+            trimUpTo(streamKey, last);
+        }
+    }
+
+    private void trimUpTo(String streamKey, String last) {
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                    Range.closed("-", last), RedisZSetCommands.Limit.limit().count(batchSize));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+            Long removed = stringRedisTemplate.opsForStream().delete(streamKey, ids);
+            trimmed.computeIfAbsent(streamKey, k -> new LongAdder()).add(removed == null ? 0 : removed);
+            if (records.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 所有消费者组都已处理完的位置(不含)：有pending消息时为最早的pending消息，否则为最后投递的消息之后
+     */
+    private long[] completedBound(String streamKey) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        if (groups.isEmpty()) {
+            return null;
+        }
+        long[] bound = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            long[] groupBound;
+            if (group.pendingCount() > 0) {
+                PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(streamKey, group.groupName());
+                groupBound = parse(pending.minMessageId());
+            } else {
+                long[] delivered = parse(group.lastDeliveredId());
+                groupBound = new long[]{delivered[0], delivered[1] + 1};
+            }
+            if (bound == null || compare(groupBound, bound) < 0) {
+                bound = groupBound;
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * 追加写入当前分段文件，每行一条消息: id \t field=value \t ...
+     */
+    private void append(String streamKey, List<MapRecord<String, Object, Object>> records) throws IOException {
+        File segment = currentSegment(streamKey, records.get(0).getId().getValue());
+        try (FileOutputStream out = new FileOutputStream(segment, true);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (MapRecord<String, Object, Object> record : records) {
+                line.setLength(0);
+                line.append(record.getId().getValue());
+                record.getValue().forEach((field, value) -> line.append('\t').append(field).append('=').append(value));
+                writer.write(line.append('\n').toString());
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private File currentSegment(String streamKey, String firstId) {
+        File streamDir = new File(dir, streamKey);
+        if (!streamDir.exists() && !streamDir.mkdirs()) {
+            throw new IllegalStateException("无法创建归档目录: " + streamDir);
+        }
+        List<File> segments = segments(streamKey);
+        if (!segments.isEmpty()) {
+            File last = segments.get(segments.size() - 1);
+            if (last.length() < segmentBytes) {
+                return last;
+            }
+        }
+        // 文件名为其中第一条消息的id
+        return new File(streamDir, firstId + SEGMENT_SUFFIX);
+    }
+
+    private List<File> segments(String streamKey) {
+        File[] files = new File(dir, streamKey).listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        List<File> segments = files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+        segments.sort(Comparator.comparing(
+                file -> parse(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())),
+                OrderStreamArchiver::compare));
+        return segments;
+    }
+
+    /**
+     * 按顺序重放归档的消息
+     * @param fromId 只重放id大于该值的消息，为null时从头开始
+     */
+    public void replay(String streamKey, String fromId, BiConsumer<String, Map<String, String>> handler) throws IOException {
+        long[] from = fromId == null ? null : parse(fromId);
+        for (File segment : segments(streamKey)) {
+            try (BufferedReader reader = Files.newBufferedReader(segment.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (from != null && compare(parse(parts[0]), from) <= 0) {
+                        continue;
+                    }
+                    Map<String, String> value = new LinkedHashMap<>();
+                    for (int i = 1; i < parts.length; i++) {
+                        int eq = parts[i].indexOf('=');
+                        value.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+                    }
+                    handler.accept(parts[0], value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 各分区的长度、内存占用、消费延迟与归档情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (String streamKey : archivedStreams()) {
+            Map<String, Object> stream = new LinkedHashMap<>();
+            try {
+                StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(streamKey);
+                stream.put("length", info.streamLength());
+                stream.put("memoryBytes", stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                        connection.execute("MEMORY", raw("USAGE"), raw(streamKey))));
+                long lastGenerated = parse(info.lastGeneratedId())[0];
+                StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+                for (int i = 0; i < groups.size(); i++) {
+                    StreamInfo.XInfoGroup group = groups.get(i);
+                    Map<String, Object> g = new LinkedHashMap<>();
+                    g.put("consumers", group.consumerCount());
+                    g.put("pending", group.pendingCount());
+                    // 最新的消息与最后投递的消息之间的时间差，反映消费者是否跟得上
+                    g.put("deliveryLagMillis", Math.max(0, lastGenerated - parse(group.lastDeliveredId())[0]));
+                    if (group.pendingCount() > 0) {
+                        String minPending = stringRedisTemplate.opsForStream().pending(streamKey, group.groupName()).minMessageId();
+                        g.put("oldestPendingAgeMillis", now - parse(minPending)[0]);
+                    }
+                    stream.put("group:" + group.groupName(), g);
+                }
+            } catch (Exception e) {
+                stream.put("error", e.getMessage());
+            }
+            stream.put("archivedUpTo", stringRedisTemplate.opsForValue().get(STREAM_ORDERS_ARCHIVED_KEY + streamKey));
+            stream.put("archived", archived.getOrDefault(streamKey, new LongAdder()).sum());
+            stream.put("trimmed", trimmed.getOrDefault(streamKey, new LongAdder()).sum());
+            stats.put(streamKey, stream);
+        }
+        return stats;
+    }
+
+    private static long[] parse(String id) {
+        int dash = id.indexOf('-');
+        if (dash < 0) {
+            return new long[]{Long.parseLong(id), 0};
+        }
+        return new long[]{Long.parseLong(id.substring(0, dash)), Long.parseLong(id.substring(dash + 1))};
+    }
+
+    private static int compare(long[] a, long[] b) {
+        int c = Long.compare(a[0], b[0]);
+        return c != 0 ? c : Long.compare(a[1], b[1]);
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,480 @@
+package com.hmdp.job;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ScriptRegistry;
+import com.hmdp.utils.SoldOutMarker;
+import com.hmdp.utils.StreamPartitioner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_LOCK;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * 秒杀库存对账
+ * <p>
+ * Redis中 剩余库存 + 已下单用户数 与数据库中 剩余库存 + 订单数 都等于券的总库存，且不受尚未写库的订单影响。
+ * 两者不等说明库存发生了偏差；已下单用户数与订单数不等时，再用 SSCAN 和按索引分页的查询逐个比对用户，
+ * 找出丢失的订单和Redis中缺少的下单记录。连续两次对账都存在的偏差才会上报为漂移，开启修复时：
+ * 丢失的订单重新投递到消息队列，缺少的下单记录补到Redis，最后以数据库为准调整Redis中的剩余库存。
+ * 重新投递时沿用消息队列中原来的订单id，原消息仍在pending或尚未投递的订单正在处理中，不重新投递
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    /**
+     * 报告中每种差异最多列出的用户数
+     */
+    private static final int SAMPLE_SIZE = 20;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private ScriptRegistry scriptRegistry;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 发现漂移时是否自动修复，关闭时只上报
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    @Value("${hmdp.seckill.reconcile.interval-millis:60000}")
+    private long intervalMillis;
+
+    /**
+     * 结束超过该时间的秒杀券不再对账
+     */
+    @Value("${hmdp.seckill.reconcile.lookback-minutes:60}")
+    private long lookbackMinutes;
+
+    @Value("${hmdp.seckill.reconcile.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+
+    @Value("${hmdp.seckill.order.group:g1}")
+    private String group;
+
+    private StreamPartitioner orderStreams;
+
+    private final String nodeId = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 上一次对账发现的差异，用来排除尚未写库的订单造成的暂时差异
+     */
+    private final Map<Long, Drift> lastDrifts = new ConcurrentHashMap<>();
+
+    private volatile Map<String, Object> lastReport = Collections.emptyMap();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder repairedStock = new LongAdder();
+    private final LongAdder redeliveredOrders = new LongAdder();
+    private final LongAdder restoredUsers = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        orderStreams = new StreamPartitioner(STREAM_ORDERS_KEY, partitions);
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::reconcileAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    private void reconcileAll() {
+        // 只由一个节点对账
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(SECKILL_RECONCILE_LOCK, nodeId, intervalMillis, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            reconcile();
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        }
+    }
+
+    /**
+     * 对正在进行和刚结束的秒杀券对账一次
+     * @return 对账报告
+     */
+    public Map<String, Object> reconcile() {
+        long begin = System.currentTimeMillis();
+        // 1.查询需要对账的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .ge("end_time", LocalDateTime.now().minusMinutes(lookbackMinutes))
+                .list();
+        // 2.一次往返统计所有券在Redis中的剩余库存和已下单用户数
+        List<ScriptRegistry.ScriptCall> calls = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            calls.add(ScriptRegistry.ScriptCall.of(Collections.emptyList(), voucher.getVoucherId().toString()));
+        }
+        List<Object> counts = vouchers.isEmpty()
+                ? Collections.emptyList() : scriptRegistry.executePipelined("reconcile", ReturnType.MULTI, calls);
+        // 3.逐个对账，只保留有差异的券
+        List<Map<String, Object>> drifts = new ArrayList<>();
+        Set<Long> checked = new HashSet<>();
+        for (int i = 0; i < vouchers.size(); i++) {
+            SeckillVoucher voucher = vouchers.get(i);
+            checked.add(voucher.getVoucherId());
+            try {
+                Map<String, Object> drift = reconcile(voucher.getVoucherId(), toLongs(counts.get(i)));
+                if (drift != null) {
+                    drifts.add(drift);
+                }
+            } catch (Exception e) {
+                log.error("优惠券{}对账失败", voucher.getVoucherId(), e);
+            }
+        }
+        lastDrifts.keySet().retainAll(checked);
+        runs.increment();
+        // 4.生成报告
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("time", LocalDateTime.now());
+        report.put("vouchers", vouchers.size());
+        report.put("repair", repair);
+        report.put("costMillis", System.currentTimeMillis() - begin);
+        report.put("drifts", drifts);
+        lastReport = report;
+        if (!drifts.isEmpty()) {
+            log.warn("秒杀库存对账发现{}张券存在漂移: {}", drifts.size(), drifts);
+        }
+        return report;
+    }
+
+    /**
+     * 对一张券对账
+     * @return 连续两次都存在的差异，没有则返回null
+     */
+    private Map<String, Object> reconcile(Long voucherId, List<Long> redis) {
+        // 1.Redis和数据库中各自的 剩余库存、已下单用户数
+        Map<String, Object> db = seckillVoucherMapper.queryStockAndOrders(voucherId);
+        if (db == null) {
+            lastDrifts.remove(voucherId);
+            return null;
+        }
+        Drift drift = new Drift();
+        drift.dbStock = ((Number) db.get("stock")).longValue();
+        drift.dbOrders = ((Number) db.get("orders")).longValue();
+        drift.redisStock = redis.get(0);
+        drift.redisOrders = redis.get(1);
+        int shards = redis.get(2).intValue();
+        // 总库存之差，正数表示Redis中少了库存。库存key不存在时(如Redis数据丢失)剩余库存按0计算
+        drift.stockDelta = (drift.dbStock + drift.dbOrders) - (drift.redisStock + drift.redisOrders);
+        // 2.下单用户数不同时逐个比对用户
+        if (drift.redisOrders != drift.dbOrders) {
+            diffUsers(voucherId, shards, drift);
+        }
+        // 3.与上一次的差异取交集，排除尚未写库的订单
+        Drift last = lastDrifts.put(voucherId, drift);
+        if (last == null || drift.isConsistent()) {
+            return null;
+        }
+        drift.missingInDb.retainAll(last.missingInDb);
+        drift.missingInRedis.retainAll(last.missingInRedis);
+        if (drift.stockDelta != last.stockDelta) {
+            drift.stockDelta = 0;
+        }
+        if (drift.isConsistent()) {
+            return null;
+        }
+        Map<String, Object> report = drift.toReport(voucherId);
+        // 4.修复
+        if (repair) {
+            report.put("repaired", repair(voucherId, shards, drift));
+            lastDrifts.remove(voucherId);
+        }
+        return report;
+    }
+
+    /**
+     * 把Redis中的总库存调整为 expected
+     * @return 调整后的剩余库存、已下单用户数、库存分片数、库存是否存在(1/0)
+     */
+    private List<Long> adjustRedisStock(Long voucherId, long expected) {
+        return toLongs(scriptRegistry.execute("reconcile", ReturnType.MULTI,
+                Collections.emptyList(), voucherId.toString(), String.valueOf(expected)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Long> toLongs(Object result) {
+        return (List<Long>) result;
+    }
+
+    /**
+     * 比对Redis中的下单用户和数据库中的订单用户
+     */
+    private void diffUsers(Long voucherId, int shards, Drift drift) {
+        // 1.SSCAN 读取Redis中的下单用户
+        Set<Long> redisUsers = new HashSet<>();
+        for (String key : orderKeys(voucherId, shards)) {
+            ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+                cursor.forEachRemaining(userId -> redisUsers.add(Long.valueOf(userId)));
+            } catch (Exception e) {
+                throw new IllegalStateException("扫描下单用户失败: " + key, e);
+            }
+        }
+        // 2.按user_id分页读取订单，逐页比对
+        long afterUserId = 0;
+        List<Long> page;
+        do {
+            page = voucherOrderMapper.queryUserIdsOfVoucher(voucherId, afterUserId, batchSize);
+            for (Long userId : page) {
+                if (!redisUsers.remove(userId)) {
+                    drift.missingInRedis.add(userId);
+                }
+            }
+            if (!page.isEmpty()) {
+                afterUserId = page.get(page.size() - 1);
+            }
+        } while (page.size() == batchSize);
+        // 3.剩下的是在Redis中下了单，但数据库中没有订单的用户
+        drift.missingInDb.addAll(redisUsers);
+    }
+
+    private List<String> orderKeys(Long voucherId, int shards) {
+        if (shards == 0) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SECKILL_ORDER_KEY + voucherId + ":" + i);
+        }
+        return keys;
+    }
+
+    private Map<String, Object> repair(Long voucherId, int shards, Drift drift) {
+        Map<String, Object> repaired = new LinkedHashMap<>();
+        // 1.丢失的订单重新投递，沿用原来的订单id，用户拿到的订单id才能查到结果；消费者写库时由唯一索引去重
+        String streamKey = orderStreams.keyOf(voucherId);
+        Map<Long, MapRecord<String, Object, Object>> sent = findOrders(voucherId, drift.missingInDb);
+        int redelivered = 0;
+        int inFlight = 0;
+        for (Long userId : drift.missingInDb) {
+            MapRecord<String, Object, Object> record = sent.get(userId);
+            // 1.1.原消息还没有被确认，消费者仍会处理，不重新投递
+            if (record != null && isInFlight(record.getStream(), record.getId())) {
+                inFlight++;
+                continue;
+            }
+            // 1.2.消息队列中找不到原消息(本地队列模式或已归档)，只能生成新的订单id
+            long orderId = record == null ? redisIdWorker.nextId("order") : orderIdOf(record);
+            Map<String, String> value = new HashMap<>(4);
+            value.put("userId", userId.toString());
+            value.put("voucherId", voucherId.toString());
+            value.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(streamKey).ofMap(value));
+            redelivered++;
+        }
+        redeliveredOrders.add(redelivered);
+        repaired.put("redeliveredOrders", redelivered);
+        repaired.put("inFlightOrders", inFlight);
+        // 2.补上Redis中缺少的下单记录，避免这些用户重复下单
+        for (Long userId : drift.missingInRedis) {
+            String key = shards == 0 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + voucherId + ":" + userId % shards;
+            stringRedisTemplate.opsForSet().add(key, userId.toString());
+        }
+        restoredUsers.add(drift.missingInRedis.size());
+        repaired.put("restoredUsers", drift.missingInRedis.size());
+        // 3.以数据库的总库存为准调整Redis中的剩余库存，重新读取数据库，使用最新的订单数
+        if (drift.stockDelta != 0 || !drift.missingInRedis.isEmpty()) {
+            Map<String, Object> db = seckillVoucherMapper.queryStockAndOrders(voucherId);
+            long expected = ((Number) db.get("stock")).longValue() + ((Number) db.get("orders")).longValue();
+            List<Long> after = adjustRedisStock(voucherId, expected);
+            long delta = after.get(0) - drift.redisStock;
+            repairedStock.add(Math.abs(delta));
+            repaired.put("redisStock", after.get(0));
+            if (delta > 0) {
+                // 补充了库存，清除售罄标记
+                soldOutMarker.reset(voucherId);
+            }
+        }
+        log.warn("优惠券{}的库存漂移已修复: {}", voucherId, repaired);
+        return repaired;
+    }
+
+    /**
+     * 在该券所在分区和未分区的 stream.orders 中查找这些用户的订单消息
+     */
+    private Map<Long, MapRecord<String, Object, Object>> findOrders(Long voucherId, Set<Long> userIds) {
+        Map<Long, MapRecord<String, Object, Object>> found = new HashMap<>();
+        Set<String> streamKeys = new LinkedHashSet<>();
+        streamKeys.add(orderStreams.keyOf(voucherId));
+        streamKeys.add(STREAM_ORDERS_KEY);
+        for (String streamKey : streamKeys) {
+            String last = "-";
+            while (found.size() < userIds.size()) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                        Range.closed(last, "+"), RedisZSetCommands.Limit.limit().count(batchSize));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    Map<Object, Object> value = record.getValue();
+                    if (record.getId().getValue().equals(last) || !voucherId.toString().equals(value.get("voucherId"))) {
+                        continue;
+                    }
+                    Long userId = Long.valueOf(value.get("userId").toString());
+                    if (userIds.contains(userId)) {
+                        found.put(userId, record);
+                    }
+                }
+                if (records.size() < batchSize) {
+                    break;
+                }
+                last = records.get(records.size() - 1).getId().getValue();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 消息是否仍在处理中：在消费者组的pending-list中，或者还没有投递给消费者
+     */
+    private boolean isInFlight(String streamKey, RecordId id) {
+        if (!stringRedisTemplate.opsForStream().pending(streamKey, group, Range.closed(id.getValue(), id.getValue()), 1L).isEmpty()) {
+            return true;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup info = groups.get(i);
+            if (group.equals(info.groupName())) {
+                RecordId delivered = RecordId.of(info.lastDeliveredId());
+                return id.getTimestamp() > delivered.getTimestamp()
+                        || id.getTimestamp().equals(delivered.getTimestamp()) && id.getSequence() > delivered.getSequence();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 消息中的订单id，脚本写入的消息只有时间戳和序列号
+     */
+    private static long orderIdOf(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = record.getValue();
+        Object id = value.get("id");
+        if (id != null) {
+            return Long.parseLong(id.toString());
+        }
+        return RedisIdWorker.compose(Long.parseLong(value.get("ts").toString()), Long.parseLong(value.get("seq").toString()));
+    }
+
+    /**
+     * 最近一次对账的报告和累计修复情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("runs", runs.sum());
+        stats.put("repairedStock", repairedStock.sum());
+        stats.put("redeliveredOrders", redeliveredOrders.sum());
+        stats.put("restoredUsers", restoredUsers.sum());
+        stats.put("lastReport", lastReport);
+        return stats;
+    }
+
+    private static class Drift {
+        private long redisStock;
+        private long redisOrders;
+        private long dbStock;
+        private long dbOrders;
+        private long stockDelta;
+        private final Set<Long> missingInDb = new HashSet<>();
+        private final Set<Long> missingInRedis = new HashSet<>();
+
+        private boolean isConsistent() {
+            return stockDelta == 0 && missingInDb.isEmpty() && missingInRedis.isEmpty();
+        }
+
+        private Map<String, Object> toReport(Long voucherId) {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("voucherId", voucherId);
+            report.put("redisStock", redisStock);
+            report.put("redisOrders", redisOrders);
+            report.put("dbStock", dbStock);
+            report.put("dbOrders", dbOrders);
+            report.put("stockDelta", stockDelta);
+            report.put("missingInDb", missingInDb.size());
+            report.put("missingInDbSample", sample(missingInDb));
+            report.put("missingInRedis", missingInRedis.size());
+            report.put("missingInRedisSample", sample(missingInRedis));
+            return report;
+        }
+
+        private static List<Long> sample(Set<Long> userIds) {
+            List<Long> sample = new ArrayList<>(Math.min(SAMPLE_SIZE, userIds.size()));
+            for (Long userId : userIds) {
+                if (sample.size() == SAMPLE_SIZE) {
+                    break;
+                }
+                sample.add(userId);
+            }
+            return sample;
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 在同一条语句中查询剩余库存和订单数，两者来自同一个快照，不会读到下单事务的中间状态
+     * @return stock: 剩余库存，orders: 订单数；券不存在时返回null
+     */
+    Map<String, Object> queryStockAndOrders(@Param("voucherId") Long voucherId);
 }
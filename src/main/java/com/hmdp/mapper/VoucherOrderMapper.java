@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一条INSERT语句写入多个订单，违反唯一索引(同一用户重复购买同一张券)的订单被忽略
+     * @return 实际写入的订单数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 按user_id分页查询购买了某张券的用户，只扫描唯一索引(voucher_id, user_id)
+     * @param afterUserId 上一页最后一个用户id，第一页传0
+     */
+    List<Long> queryUserIdsOfVoucher(@Param("voucherId") Long voucherId,
+                                     @Param("afterUserId") Long afterUserId,
+                                     @Param("limit") int limit);
 }
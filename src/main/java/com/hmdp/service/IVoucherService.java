@@ -17,4 +17,9 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 把数据库中秒杀券的开始、结束时间同步到Redis
+     */
+    void syncSeckillWindow(Long voucherId);
 }
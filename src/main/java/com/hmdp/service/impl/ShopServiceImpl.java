@@ -4,20 +4,29 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.CacheMode;
 import com.hmdp.utils.RedisData;
-import org.springframework.boot.autoconfigure.cache.CacheProperties;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -32,6 +41,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -41,19 +51,46 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
-    @Override
-    public Result queryById(Long id) {
-        // 解决缓存穿透
-//        Shop shop = cacheClient
-//                .queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Value("${hmdp.cache.shop.mode:MUTEX}")
+    private CacheMode shopCacheMode;
+
+    @Value("${hmdp.cache.bloom.shop.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
 
-        // 互斥锁解决缓存击穿
-         Shop shop = cacheClient
-                 .queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    @Value("${hmdp.cache.bloom.shop.false-probability:0.01}")
+    private double bloomFalseProbability;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        // 1.注册布隆过滤器，Redis中已有持久化的位图则直接加载
+        if (cacheClient.registerBloomFilter(CACHE_SHOP_KEY, bloomExpectedInsertions, bloomFalseProbability)) {
+            return;
+        }
+        // 2.不存在，按主键分批扫描tb_shop预热
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Object> ids = listObjs(query().select("id").gt("id", lastId).orderByAsc("id").last("limit 1000"));
+            if (ids.isEmpty()) {
+                break;
+            }
+            cacheClient.seedBloomFilter(CACHE_SHOP_KEY, ids, false);
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            total += ids.size();
+        }
+        // 3.写回Redis持久化
+        cacheClient.seedBloomFilter(CACHE_SHOP_KEY, Collections.emptyList(), true);
+        log.info("店铺布隆过滤器预热完成，共{}条", total);
+    }
 
-        // 逻辑过期解决缓存击穿
-//        Shop shop = cacheClient
-//                .queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
+    @Override
+    public Result queryById(Long id) {
+        // 按配置的策略查询：缓存穿透(PASS_THROUGH)、互斥锁(MUTEX)、逻辑过期(LOGICAL_EXPIRE)、提前刷新(REFRESH_AHEAD)
+        Shop shop = cacheClient
+                .query(shopCacheMode, CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         if(shop==null){
             return Result.fail("店铺不存在！");
@@ -194,12 +231,37 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //2.删除缓存并延迟双删，删除失败进入重试队列
+        cacheInvalidator.invalidate(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.加入布隆过滤器，否则新店铺会被误判为不存在
+        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        // 3.返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        // 1.根据类型分页查询，只查id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        // 2.批量从缓存中查询店铺详情
+        List<Shop> shops = cacheClient.queryBatch(
+                shopCacheMode, CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 3.返回数据
+        return Result.ok(shops);
+    }
+
     public void saveshop2Redis(Long id,Long expireSeconds) throws InterruptedException {
         //1.查询店城数烟
         Shop shop = getById(id);
@@ -1,36 +1,62 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OrderJournalQueue;
+import com.hmdp.utils.OrderStatusTracker;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ScriptRegistry;
+import com.hmdp.utils.SeckillWindow;
+import com.hmdp.utils.SoldOutMarker;
+import com.hmdp.utils.StreamPartitioner;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.ReturnType;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
 
 /**
  * <p>
@@ -54,72 +80,407 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @Resource
+    private SeckillWindow seckillWindow;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
 
+    /**
+     * 自身的代理对象，消费线程中调用事务方法需要经过代理
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
+    /**
+     * 每次从消息队列读取并写库的最大订单数
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    /**
+     * 不足一批时最多等待的时间，越大批次越满，但订单落库延迟越高
+     */
+    @Value("${hmdp.seckill.order.linger-millis:20}")
+    private long lingerMillis;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    /**
+     * 消费者组，所有节点共用一个组，每个线程是组内一个独立的消费者
+     */
+    @Value("${hmdp.seckill.order.group:g1}")
+    private String group;
+
+    /**
+     * 每个节点在每个分区上的消费线程数
+     */
+    @Value("${hmdp.seckill.order.workers:2}")
+    private int workers;
+
+    /**
+     * 订单消息队列的分区数，按voucherId的哈希选择分区
+     */
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+
+    private StreamPartitioner orderStreams;
+
+    /**
+     * 本节点消费和接管pending消息的stream，分区后还包括分区前遗留的 stream.orders，直到其中的消息处理完
+     */
+    private final List<String> consumedStreams = new ArrayList<>();
+
+    /**
+     * 订单队列，stream: Redis消息队列；local: 本节点的持久化环形队列，省去脚本中的XADD和读取消息的网络往返
+     */
+    @Value("${hmdp.seckill.order.queue:stream}")
+    private String queueMode;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Value("${hmdp.seckill.order.local.journal:data/order-journal/orders.journal}")
+    private String journalPath;
+
+    @Value("${hmdp.seckill.order.local.capacity:65536}")
+    private int journalCapacity;
+
+    /**
+     * 每批订单写库后是否立即把日志刷盘，关闭时只能防止进程崩溃，不能防止机器宕机
+     */
+    @Value("${hmdp.seckill.order.local.fsync:false}")
+    private boolean journalFsync;
+
+    private OrderJournalQueue localQueue;
+
+    /**
+     * 本地队列为空时消费线程单次阻塞的最长时间，入队时会被立即唤醒
+     */
+    private static final long IDLE_WAIT_MILLIS = 100;
+
+    /**
+     * pending消息空闲超过该时间，视为其消费者已失效，由回收任务接管
+     */
+    @Value("${hmdp.seckill.order.reclaim-idle-millis:30000}")
+    private long reclaimIdleMillis;
+
+    @Value("${hmdp.seckill.order.reclaim-interval-millis:10000}")
+    private long reclaimIntervalMillis;
+
+    /**
+     * 节点标识，主机名-进程号，用于生成组内唯一的消费者名称
+     */
+    private final String nodeId = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+
+
+    /**
+     * 秒杀脚本返回 {结果} 或 {0, 订单序列号}，结果 1：库存不足；2：重复下单；3：尚未开始；4：已经结束
+     */
+    @Resource
+    private ScriptRegistry scriptRegistry;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private final ScheduledExecutorService reclaimExecutor = Executors.newSingleThreadScheduledExecutor();
 
     @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    private void init() throws IOException {
+        orderStreams = new StreamPartitioner(STREAM_ORDERS_KEY, partitions);
+        consumedStreams.addAll(orderStreams.keys());
+        // 从不分区切换为分区后，新订单不再写入 stream.orders，由一个消费线程处理完其中未消费的消息后退出
+        boolean legacy = !orderStreams.keys().contains(STREAM_ORDERS_KEY)
+                && Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_ORDERS_KEY));
+        if (legacy) {
+            consumedStreams.add(STREAM_ORDERS_KEY);
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(orderStreams.keys().size() * workers + 2);
+        // 0.本地队列模式，打开日志并启动唯一的消费线程。消息队列的消费者仍然启动，处理队列满时转发的订单和切换前遗留的消息
+        if ("local".equals(queueMode)) {
+            localQueue = new OrderJournalQueue(new File(journalPath), journalCapacity);
+            seckillOrderExecutor.submit(new LocalOrderHandler());
+        }
+        for (String streamKey : orderStreams.keys()) {
+            // 1.创建消费者组，stream不存在时一并创建 XGROUP CREATE stream.orders:n g1 0 MKSTREAM
+            try {
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                        streamKey.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+            } catch (Exception e) {
+                // BUSYGROUP，组已存在
+                log.debug("订单消费者组已存在: {}", e.getMessage());
+            }
+            // 2.启动消费线程，每个线程一个消费者
+            for (int i = 0; i < workers; i++) {
+                seckillOrderExecutor.submit(new VoucherOrderHandler(streamKey, nodeId + "-" + i, false));
+            }
+        }
+        if (legacy) {
+            try {
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                        STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), false));
+            } catch (Exception e) {
+                log.debug("订单消费者组已存在: {}", e.getMessage());
+            }
+            seckillOrderExecutor.submit(new VoucherOrderHandler(STREAM_ORDERS_KEY, nodeId + "-legacy", true));
+        }
+        // 3.定时接管失效消费者的pending消息
+        reclaimExecutor.scheduleWithFixedDelay(this::reclaimPending, reclaimIntervalMillis, reclaimIntervalMillis, TimeUnit.MILLISECONDS);
     }
 
+    @PreDestroy
+    private void destroy() throws IOException, InterruptedException {
+        seckillOrderExecutor.shutdownNow();
+        reclaimExecutor.shutdownNow();
+        if (localQueue != null) {
+            // 等待消费线程退出后再关闭日志
+            seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            localQueue.close();
+        }
+    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //1. 获取用户
-        Long userId = voucherOrder.getUserId();
-        //2. 创建锁对象，作为兜底方案
-        RLock redisLock = redissonClient.getLock("order:" + userId);
-        //3. 获取锁
-        boolean isLock = redisLock.tryLock();
-        //4. 判断是否获取锁成功
-        if (!isLock) {
-            log.error("不允许重复下单!");
-            return;
+    /**
+     * 接管空闲过久的pending消息
+     * <p>
+     * 消费者所在节点宕机后，它已读取但未确认的消息只在自己的pending-list中，其它消费者读不到，
+     * 这里用 XPENDING 找出空闲超过阈值的消息，XCLAIM 转移给本节点处理。
+     * XCLAIM 带有 min-idle-time，多个节点同时接管时只有一个能成功
+     */
+    private void reclaimPending() {
+        for (String streamKey : consumedStreams) {
+            reclaimPending(streamKey);
         }
+    }
+
+    private void reclaimPending(String streamKey) {
+        Consumer reclaimer = Consumer.from(group, nodeId + "-reclaimer");
         try {
-            //5. 使用代理对象，由于这里是另外一个线程，
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            redisLock.unlock();
+            while (!Thread.currentThread().isInterrupted()) {
+                // 1.查询组内的pending消息 XPENDING stream.orders g1 - + count
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(streamKey, group, Range.unbounded(), batchSize);
+                RecordId[] stale = pending.stream()
+                        .filter(message -> message.getElapsedTimeSinceLastDelivery().toMillis() >= reclaimIdleMillis)
+                        .map(PendingMessage::getId)
+                        .toArray(RecordId[]::new);
+                if (stale.length == 0) {
+                    break;
+                }
+                // 2.转移给本节点 XCLAIM stream.orders g1 reclaimer min-idle-time id...
+                List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xClaim(streamKey.getBytes(StandardCharsets.UTF_8), group,
+                                reclaimer.getName(), Duration.ofMillis(reclaimIdleMillis), stale));
+                if (claimed == null || claimed.isEmpty()) {
+                    break;
+                }
+                log.warn("接管了{}条空闲超过{}ms的订单消息", claimed.size(), reclaimIdleMillis);
+                // 3.创建订单并确认
+                handleBatch(streamKey, claimed.stream()
+                        .map(record -> record.deserialize(RedisSerializer.string()))
+                        .collect(Collectors.toList()));
+                if (stale.length < batchSize) {
+                    break;
+                }
+            }
+            // 4.清理已经没有pending消息、长期空闲的消费者
+            stringRedisTemplate.opsForStream().consumers(streamKey, group).forEach(consumer -> {
+                if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > reclaimIdleMillis * 10
+                        && !consumer.consumerName().startsWith(nodeId)) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(streamKey, Consumer.from(group, consumer.consumerName()));
+                }
+            });
+        } catch (Exception e) {
+            log.error("接管pending订单消息异常", e);
         }
     }
 
-    private class VoucherOrderHandler implements Runnable {
+    /**
+     * 批量创建订单，并一次性确认整批消息
+     */
+    private void handleBatch(String streamKey, List<? extends MapRecord<String, ?, ?>> list) {
+        // 1.解析数据
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        RecordId[] ids = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, ?, ?> record = list.get(i);
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            if (voucherOrder.getId() == null) {
+                // 脚本中只写入了时间戳和序列号，在这里拼接订单id
+                voucherOrder.setId(RedisIdWorker.compose(
+                        Long.parseLong(record.getValue().get("ts").toString()),
+                        Long.parseLong(record.getValue().get("seq").toString())));
+            }
+            voucherOrders.add(voucherOrder);
+            ids[i] = record.getId();
+        }
+        // 2.在一个事务中创建整批订单
+        persist(voucherOrders);
+        // 3.一次性确认整批消息 XACK
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, group, ids);
+    }
+
+    /**
+     * 在一个事务中创建整批订单，并更新订单状态，唤醒等待结果的请求
+     */
+    private void persist(List<VoucherOrder> voucherOrders) {
+        List<Long> rejected = createOrRejectOverstock(voucherOrders);
+        List<Long> persisted = voucherOrders.stream().map(VoucherOrder::getId)
+                .filter(id -> !rejected.contains(id)).collect(Collectors.toList());
+        orderStatusTracker.update(persisted, OrderStatusTracker.PERSISTED);
+        orderStatusTracker.update(rejected, OrderStatusTracker.FAILED);
+    }
+
+    /**
+     * 数据库库存不足时整批回滚，再逐个写入，库存不足的订单不写库，作为失败的订单返回
+     */
+    private List<Long> createOrRejectOverstock(List<VoucherOrder> voucherOrders) {
+        try {
+            return proxy.createVoucherOrders(voucherOrders);
+        } catch (IllegalStateException e) {
+            log.error("批量创建订单失败，逐个重试: {}", e.getMessage());
+        }
+        List<Long> rejected = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            try {
+                rejected.addAll(proxy.createVoucherOrders(Collections.singletonList(voucherOrder)));
+            } catch (IllegalStateException e) {
+                log.error("订单{}创建失败: {}", voucherOrder.getId(), e.getMessage());
+                rejected.add(voucherOrder.getId());
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * 本地队列的消费线程
+     */
+    private class LocalOrderHandler implements Runnable {
 
         @Override
         public void run() {
+            // 1.重放上次退出时未处理完的订单，写库是幂等的，重复写入会被忽略
+            List<VoucherOrder> recovered = localQueue.recovered();
+            if (!recovered.isEmpty()) {
+                log.info("重放本地订单日志中的{}个订单", recovered.size());
+                for (int i = 0; i < recovered.size(); i += batchSize) {
+                    if (!persistWithRetry(recovered.subList(i, Math.min(recovered.size(), i + batchSize)))) {
+                        return;
+                    }
+                }
+                localQueue.commitRecovered();
+            }
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                // 2.读取一批订单，不足一批时在linger时间内继续读取
+                long deadline = System.currentTimeMillis() + lingerMillis;
+                int idle = 0;
+                while (batch.size() < batchSize) {
+                    if (localQueue.drain(batch, batchSize - batch.size()) > 0) {
+                        idle = 0;
+                        continue;
+                    }
+                    if (!batch.isEmpty() && System.currentTimeMillis() >= deadline) {
+                        break;
+                    }
+                    // 队列为空，先短暂自旋，再阻塞到有订单入队；已有订单时最多等到linger截止
+                    if (++idle < 100) {
+                        Thread.yield();
+                    } else {
+                        long waitMillis = batch.isEmpty() ? IDLE_WAIT_MILLIS
+                                : Math.max(1, deadline - System.currentTimeMillis());
+                        localQueue.awaitOrders(TimeUnit.MILLISECONDS.toNanos(waitMillis));
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                    }
+                }
+                // 3.写库成功后才确认，释放日志中的槽位
+                if (!persistWithRetry(batch)) {
+                    return;
+                }
+                localQueue.commit(journalFsync);
+                batch.clear();
+            }
+        }
+
+        /**
+         * 写库失败时重试同一批订单，直到成功或线程被中断
+         */
+        private boolean persistWithRetry(List<VoucherOrder> batch) {
             while (true) {
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                    );
+                    persist(batch);
+                    return true;
+                } catch (Exception e) {
+                    log.error("处理本地队列订单异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+
+    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 一人一单由数据库唯一索引保证，不再需要加锁
+        // 使用代理对象，由于这里是另外一个线程，
+        proxy.createVoucherOrder(voucherOrder);
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final String streamKey;
+        private final Consumer consumer;
+        /**
+         * 是否在没有新消息后退出，用于处理不再写入的stream
+         */
+        private final boolean drainOnly;
+
+        private VoucherOrderHandler(String streamKey, String consumerName, boolean drainOnly) {
+            this.streamKey = streamKey;
+            this.consumer = Consumer.from(group, consumerName);
+            this.drainOnly = drainOnly;
+        }
+
+        @Override
+        public void run() {
+            if (drainOnly) {
+                // 先处理本消费者上次遗留的pending消息
+                handlePendingList();
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = read(Duration.ofSeconds(2));
                     // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
+                    if (list.isEmpty()) {
+                        if (drainOnly) {
+                            // 其它消费者遗留的pending消息由定时接管任务处理
+                            log.info("{} 中的订单消息已全部处理", streamKey);
+                            return;
+                        }
+                        // 如果为空，说明没有消息，继续下一次循环
                         continue;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 2.1.不足一批时，在linger时间内继续读取，凑够一批再写库
+                    long deadline = System.currentTimeMillis() + lingerMillis;
+                    while (list.size() < batchSize) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        List<MapRecord<String, Object, Object>> more = read(Duration.ofMillis(remaining));
+                        if (more.isEmpty()) {
+                            break;
+                        }
+                        list.addAll(more);
+                    }
+                    // 3.批量创建订单并确认
+                    handleBatch(streamKey, list);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
                     handlePendingList();
@@ -130,35 +491,39 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         private void handlePendingList() {
             while (true) {
                 try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
+                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(streamKey, ReadOffset.from("0"))
                     );
                     // 2.判断订单信息是否为空
                     if (list == null || list.isEmpty()) {
                         // 如果为null，说明pending-list没有异常消息，结束循环
                         break;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 3.批量创建订单并确认
+                    handleBatch(streamKey, list);
                 } catch (Exception e) {
                     log.error("处理pending-list订单异常", e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
         }
+
+        private List<MapRecord<String, Object, Object>> read(Duration block) {
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(batchSize).block(block),
+                    StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+            );
+            return list == null ? new ArrayList<>() : new ArrayList<>(list);
+        }
     }
 
 /*     private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
@@ -181,46 +546,105 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     public Result seckillVoucher(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
+        // 0.本地已标记售罄，或明显不在秒杀时间内，直接返回
+        if (soldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        int window = seckillWindow.check(voucherId);
+        if (window != SeckillWindow.OPEN) {
+            return Result.fail(window == SeckillWindow.NOT_STARTED ? "秒杀尚未开始" : "秒杀已经结束");
+        }
+        // 统计库存key的访问热度
+        hotKeyDetector.record(SECKILL_STOCK_KEY + voucherId);
+        // 1.执行lua脚本，订单写入该券所在分区的消息队列，抢购成功时在脚本中生成订单序列号
+        long generation = soldOutMarker.generation(voucherId);
+        long timestamp = redisIdWorker.timestamp();
+        List<?> result = scriptRegistry.execute(
+                "seckill", ReturnType.MULTI,
+                Arrays.asList(orderStreams.keyOf(voucherId), redisIdWorker.sequenceKey("order", timestamp),
+                        OrderStatusTracker.statusKey(timestamp)),
+                voucherId.toString(), userId.toString(), String.valueOf(timestamp),
+                String.valueOf(orderStatusTracker.getTtlSeconds()), localQueue == null ? "1" : "0"
         );
-        int r = result.intValue();
+        int r = ((Long) result.get(0)).intValue();
         // 2.判断结果是否为0
         if (r != 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            // 2.1.库存不足，标记售罄并通知其它节点
+            if (r == 1) {
+                soldOutMarker.markSoldOut(voucherId, generation);
+            }
+            // 2.2.不为0 ，代表没有购买资格
+            switch (r) {
+                case 1:
+                    return Result.fail("库存不足");
+                case 2:
+                    return Result.fail("不能重复下单");
+                case 3:
+                    return Result.fail("秒杀尚未开始");
+                default:
+                    return Result.fail("秒杀已经结束");
+            }
+        }
+        // 3.拼接并返回订单id
+        long orderId = RedisIdWorker.compose(timestamp, (Long) result.get(1));
+        // 4.本地队列模式，写入本地队列，队列已满时转发到消息队列
+        if (localQueue != null && !localQueue.offer(orderId, userId, voucherId)) {
+            Map<String, String> order = new HashMap<>(4);
+            order.put("id", String.valueOf(orderId));
+            order.put("userId", userId.toString());
+            order.put("voucherId", voucherId.toString());
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(orderStreams.keyOf(voucherId)).ofMap(order));
         }
-        // 3.返回订单id
         return Result.ok(orderId);
     }
 
 
+    @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单逻辑
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        synchronized (userId.toString().intern()) {
-            int count = query().eq("voucher_id", voucherId).eq("user_id", userId).count();
-            if (count > 0) {
-                log.error("你已经抢过优惠券了哦");
+        createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 批量创建订单，每张券一条多行INSERT和一条扣减库存的UPDATE
+     * <p>
+     * 一人一单由 tb_voucher_order 的唯一索引(voucher_id, user_id)保证：INSERT IGNORE 跳过重复的订单
+     * (包括消息重复投递和批内重复)，只按实际写入的行数扣减库存，不需要先查询，也不需要加锁
+     * @return 因同一用户已有其它订单而没有写入的订单id
+     * @throws IllegalStateException 数据库库存不足以扣减时抛出，整批回滚
+     */
+    @Override
+    @Transactional
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        List<Long> rejected = new ArrayList<>();
+        // 1.按优惠券分组
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        byVoucher.forEach((voucherId, orders) -> {
+            // 2.写入订单，重复的订单被忽略
+            int inserted = getBaseMapper().insertBatch(orders);
+            if (inserted < orders.size()) {
+                // 2.1.订单id已存在的是重复投递的消息，其余的是同一用户的重复订单
+                List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                Set<Long> saved = query().select("id").in("id", ids).list().stream()
+                        .map(VoucherOrder::getId).collect(Collectors.toSet());
+                ids.stream().filter(id -> !saved.contains(id)).forEach(rejected::add);
+                log.error("优惠券{}有{}个重复订单被忽略", voucherId, orders.size() - inserted);
+            }
+            if (inserted == 0) {
                 return;
             }
-            //5. 扣减库存
+            // 3.按实际写入的订单数扣减库存
             boolean success = seckillVoucherService.update()
-                    .setSql("stock = stock - 1")
+                    .setSql("stock = stock - " + inserted)
                     .eq("voucher_id", voucherId)
-                    .gt("stock", 0)
+                    .ge("stock", inserted)
                     .update();
             if (!success) {
-                log.error("库存不足");
+                // 回滚整个事务，不能提交没有扣减库存的订单
+                throw new IllegalStateException("库存不足, voucherId=" + voucherId + ", 订单数=" + inserted);
             }
-            //7. 将订单数据保存到表中
-            save(voucherOrder);
-        }
+        });
+        return rejected;
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +8,27 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ScriptRegistry;
+import com.hmdp.utils.SeckillWindow;
+import com.hmdp.utils.SoldOutMarker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.ReturnType;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_SHOP_TTL;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_META_KEY;
 
 /**
  * <p>
@@ -31,15 +45,94 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private SoldOutMarker soldOutMarker;
+    @Resource
+    private SeckillWindow seckillWindow;
+    @Resource
+    private ScriptRegistry scriptRegistry;
+
+    /**
+     * 秒杀库存的分片数，1表示不分片
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1.查询优惠券信息，数据变更后由 CacheSyncConsumer 删除缓存。
+        // 下单扣减库存不经过变更同步，缓存中不保存库存
+        Voucher[] cached = cacheClient.queryWithPassThrough(
+                CACHE_VOUCHER_SHOP_KEY, shopId, Voucher[].class,
+                id -> getBaseMapper().queryVoucherOfShop(id).stream()
+                        .map(voucher -> voucher.setStock(null))
+                        .toArray(Voucher[]::new),
+                CACHE_VOUCHER_SHOP_TTL, TimeUnit.MINUTES);
+        if (cached == null) {
+            return Result.ok(null);
+        }
+        // 2.复制一份再填入库存，缓存中的对象可能被本地缓存共享
+        Voucher[] vouchers = new Voucher[cached.length];
+        for (int i = 0; i < cached.length; i++) {
+            vouchers[i] = BeanUtil.copyProperties(cached[i], Voucher.class);
+        }
+        fillSeckillStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    /**
+     * 从Redis读取秒杀券的实时库存，分片的库存需要累加各分片，两次MGET
+     */
+    private void fillSeckillStock(Voucher[] vouchers) {
+        // 1.秒杀券有秒杀时间，普通券没有
+        List<Voucher> seckillVouchers = new ArrayList<>();
+        for (Voucher voucher : vouchers) {
+            if (voucher.getBeginTime() != null) {
+                seckillVouchers.add(voucher);
+            }
+        }
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        // 2.查询分片数
+        List<String> metas = stringRedisTemplate.opsForValue().multiGet(seckillVouchers.stream()
+                .map(voucher -> SECKILL_STOCK_META_KEY + voucher.getId())
+                .collect(Collectors.toList()));
+        // 3.查询所有库存key
+        List<String> stockKeys = new ArrayList<>();
+        int[] shards = new int[seckillVouchers.size()];
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            String stockKey = SECKILL_STOCK_KEY + seckillVouchers.get(i).getId();
+            String meta = metas == null ? null : metas.get(i);
+            shards[i] = meta == null ? 0 : Integer.parseInt(meta);
+            if (shards[i] == 0) {
+                stockKeys.add(stockKey);
+            }
+            for (int n = 0; n < shards[i]; n++) {
+                stockKeys.add(stockKey + ":" + n);
+            }
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        if (stocks == null) {
+            return;
+        }
+        // 4.累加，Redis中没有库存时保持为空
+        int index = 0;
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            Integer stock = null;
+            for (int n = 0; n < Math.max(1, shards[i]); n++) {
+                String value = stocks.get(index++);
+                if (value != null) {
+                    stock = (stock == null ? 0 : stock) + Integer.parseInt(value);
+                }
+            }
+            seckillVouchers.get(i).setStock(stock);
+        }
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -52,7 +145,32 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀库存和秒杀时间到Redis中
+        initSeckillStock(voucher.getId(), voucher.getStock());
+        seckillWindow.write(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+    }
+
+    @Override
+    public void syncSeckillWindow(Long voucherId) {
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            seckillWindow.remove(voucherId);
+            return;
+        }
+        seckillWindow.write(voucherId, seckillVoucher.getBeginTime(), seckillVoucher.getEndTime());
+    }
+
+    /**
+     * 把秒杀库存写入Redis
+     * <p>
+     * 分片数大于1时，库存平均拆分到 seckill:stock:{id}:{n} 多个key中，并在 seckill:stock:meta:{id} 记录分片数，
+     * 抢购时从用户所在的分片开始扣减，分散对单个热点key的竞争。
+     * 重新初始化时由脚本原子地删除旧的分片数、库存key和下单用户集合，已下单的用户迁移到新的集合中，
+     * 分片数改变后秒杀脚本和对账脚本不会再读到旧的key
+     */
+    public void initSeckillStock(Long voucherId, int stock) {
+        scriptRegistry.execute("initstock", ReturnType.INTEGER, Collections.emptyList(),
+                voucherId.toString(), String.valueOf(stock), String.valueOf(Math.max(1, stockShards)));
+        soldOutMarker.reset(voucherId);
     }
 }
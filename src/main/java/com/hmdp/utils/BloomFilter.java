@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 进程内布隆过滤器
+ * <p>
+ * 位的排列顺序与Redis的bitmap一致(每个字节高位在前)，可以直接与 GET/SETBIT 的结果互相转换
+ */
+public class BloomFilter {
+
+    private final long bitSize;
+    private final int hashFunctions;
+    private final long expectedInsertions;
+    private final double falseProbability;
+    private final AtomicLongArray words;
+
+    public BloomFilter(long expectedInsertions, double falseProbability) {
+        this.expectedInsertions = expectedInsertions;
+        this.falseProbability = falseProbability;
+        // m = -n*ln(p) / (ln2)^2 ，向上取整到8的倍数，方便与Redis的字节对齐
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(falseProbability) / (Math.log(2) * Math.log(2)));
+        this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+        // k = m/n * ln2
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.words = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    /**
+     * 计算元素对应的所有位下标
+     */
+    public long[] offsets(String value) {
+        long[] hash = MurmurHash.hash128(value);
+        long[] offsets = new long[hashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < hashFunctions; i++) {
+            // 双重哈希模拟k个哈希函数
+            offsets[i] = (combined & Long.MAX_VALUE) % bitSize;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    public boolean mightContain(String value) {
+        for (long offset : offsets(value)) {
+            if (!getBit(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setBits(long[] offsets) {
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << (63 - (offset & 63));
+            long old;
+            do {
+                old = words.get(index);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!words.compareAndSet(index, old, old | mask));
+        }
+    }
+
+    private boolean getBit(long offset) {
+        return (words.get((int) (offset >>> 6)) & (1L << (63 - (offset & 63)))) != 0;
+    }
+
+    /**
+     * 转为Redis bitmap格式的字节数组
+     */
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 从Redis bitmap格式的字节数组合并位，长度不足的部分视为0
+     */
+    public void merge(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.length % 8 == 0 ? bytes : Arrays.copyOf(bytes, (bytes.length + 7) / 8 * 8));
+        for (int i = 0; i < words.length() && buffer.remaining() >= 8; i++) {
+            long bits = buffer.getLong();
+            long old;
+            do {
+                old = words.get(i);
+            } while (!words.compareAndSet(i, old, old | bits));
+        }
+    }
+
+    /**
+     * 根据已置位的数量估算元素个数: n ≈ -m/k * ln(1 - X/m)
+     */
+    public long approximateCount() {
+        long bitCount = 0;
+        for (int i = 0; i < words.length(); i++) {
+            bitCount += Long.bitCount(words.get(i));
+        }
+        if (bitCount >= bitSize) {
+            return Long.MAX_VALUE;
+        }
+        return Math.round(-(double) bitSize / hashFunctions * Math.log(1 - (double) bitCount / bitSize));
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public double getFalseProbability() {
+        return falseProbability;
+    }
+}
@@ -1,19 +1,38 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 
@@ -23,14 +42,91 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 缓存值的序列化方式，见 RedisConfig#cacheSerializer
+     */
+    private final CacheSerializer serializer;
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 等待同一JVM内其它线程重建缓存的最长时间
+     */
+    private static final long REBUILD_WAIT_MILLIS = 3000;
+    /**
+     * 其它节点持有互斥锁时，重新查询Redis的最大次数
+     */
+    private static final int MUTEX_RETRY_TIMES = 20;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 提前刷新模式的系数，越大越早刷新
+     */
+    private final double refreshBeta;
+    /**
+     * 当前节点正在异步刷新的key，避免重复提交
+     */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder earlyRefresh = new LongAdder();
+
+    /**
+     * 进程内一级缓存，Redis作为二级缓存
+     */
+    private final LocalCache<Object> localCache;
+    private final boolean localEnabled;
+
+    /**
+     * 启用热点探测后，本地缓存只保存热点key的短期副本，热度下降后自动移出
+     */
+    private final HotKeyDetector hotKeyDetector;
+    private final long hotKeyLocalTtlMillis;
+
+    // 各级缓存的命中统计
+    private final LongAdder localHit = new LongAdder();
+    private final LongAdder localMiss = new LongAdder();
+    private final LongAdder redisHit = new LongAdder();
+    private final LongAdder redisNullHit = new LongAdder();
+    private final LongAdder redisMiss = new LongAdder();
+    private final LongAdder dbLoad = new LongAdder();
+    private final LongAdder bloomReject = new LongAdder();
+
+    /**
+     * 按key前缀注册的布隆过滤器，用于拦截一定不存在的id，解决缓存穿透
+     */
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       CacheSerializer serializer,
+                       RedisMessageListenerContainer listenerContainer,
+                       HotKeyDetector hotKeyDetector,
+                       @Value("${hmdp.cache.local.enabled:true}") boolean localEnabled,
+                       @Value("${hmdp.cache.local.max-weight:16777216}") long localMaxWeight,
+                       @Value("${hmdp.cache.local.ttl-millis:5000}") long localTtlMillis,
+                       @Value("${hmdp.cache.refresh-ahead.beta:1.0}") double refreshBeta,
+                       @Value("${hmdp.hot-key.local-ttl-millis:1000}") long hotKeyLocalTtlMillis) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.serializer = serializer;
+        this.localEnabled = localEnabled;
+        this.localCache = new LocalCache<>(localMaxWeight, localTtlMillis);
+        this.refreshBeta = refreshBeta;
+        this.hotKeyDetector = hotKeyDetector;
+        this.hotKeyLocalTtlMillis = hotKeyLocalTtlMillis;
+        hotKeyDetector.onDemote(localCache::invalidate);
+        // 订阅其它节点发出的失效消息，清除本地缓存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> localCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 订阅其它节点新增到布隆过滤器的元素
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onBloomFilterAdd(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_FILTER_ADD_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        byte[] bytes = serializer.serialize(value);
+        setBytes(key, bytes, unit.toSeconds(time));
+        putLocal(key, value, bytes);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
@@ -39,31 +135,82 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        byte[] bytes = serializer.serialize(redisData);
+        setBytes(key, bytes, -1);
+        putLocal(key, redisData, bytes);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点清除本地缓存
+     */
+    public void invalidate(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 只清除当前节点的本地缓存
+     */
+    public void evictLocal(String key) {
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 按指定的策略查询缓存
+     */
+    public <R, ID> R query(
+            CacheMode mode, String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        switch (mode) {
+            case PASS_THROUGH:
+                return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit);
+            case LOGICAL_EXPIRE:
+                return queryWithLogicalExpire(keyPrefix, id, type, dbFallback, time, unit);
+            case REFRESH_AHEAD:
+                return queryWithRefreshAhead(keyPrefix, id, type, dbFallback, time, unit);
+            case MUTEX:
+            default:
+                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+        }
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        // 0.先查本地缓存
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        // 0.1.布隆过滤器判断一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        byte[] bytes = getBytes(key);
+        // 2.判断是否存在，无法解析的旧数据按未命中处理
+        R cached = isBlank(bytes) ? null : serializer.deserialize(bytes, type);
+        if (cached != null) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            redisHit.increment();
+            putLocal(key, cached, bytes);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (json != null) {
+        if (bytes != null && bytes.length == 0) {
             // 返回一个错误信息
+            redisNullHit.increment();
             return null;
         }
+        redisMiss.increment();
 
         // 4.不存在，根据id查询数据库
+        dbLoad.increment();
         R r = dbFallback.apply(id);
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setBytes(key, new byte[0], TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
             // 返回错误信息
             return null;
         }
@@ -75,24 +222,45 @@ public class CacheClient {
     public <R, ID> R  queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0.先查本地缓存，本地缓存中保存的是已经反序列化好的RedisData
+        RedisData localData = getLocal(key, RedisData.class);
+        if (localData != null && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+            return type.cast(localData.getData());
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
+        if (isBlank(bytes)) {
+            // 3.不存在，直接返回
+            redisMiss.increment();
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        RedisData redisData = serializer.deserialize(bytes, RedisData.class);
+        if (redisData == null) {
+            // 3.1.存在但无法解析(格式变化的旧数据)，没有旧数据可返回，同步重建：
+            // 同一个JVM内只有一个线程去竞争互斥锁，其余线程等待它的结果，避免热点key的请求全部打到数据库
+            redisMiss.increment();
+            return singleFlight.execute(key, () -> rebuildLogicalWithMutex(key, id, type, dbFallback, time, unit), REBUILD_WAIT_MILLIS);
+        }
+        redisHit.increment();
+        // 4.命中，二进制格式反序列化后即为目标类型，JSON格式还需要再转换一次
+        R r = serializer.convert(redisData.getData(), type);
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())) {
             // 5.1.未过期，直接返回店铺信息
+            redisData.setData(r);
+            putLocal(key, redisData, bytes);
             return r;
         }
         // 5.2.已过期，需要缓存重建
         // 6.缓存重建
+        rebuildWithLogicalExpire(key, id, dbFallback, time, unit);
+        // 6.4.返回过期的商铺信息
+        return r;
+    }
+
+    private <R, ID> void rebuildWithLogicalExpire(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         // 6.1.获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
         boolean isLock = tryLock(lockKey);
@@ -102,6 +270,7 @@ public class CacheClient {
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
                     // 查询数据库
+                    dbLoad.increment();
                     R newR = dbFallback.apply(id);
                     // 重建缓存
                     this.setWithLogicalExpire(key, newR, time, unit);
@@ -113,59 +282,547 @@ public class CacheClient {
                 }
             });
         }
-        // 6.4.返回过期的商铺信息
-        return r;
+    }
+
+    /**
+     * 同步重建逻辑过期的缓存，获取不到锁时等待其它节点写入新数据
+     */
+    private <R, ID> R rebuildLogicalWithMutex(
+            String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        try {
+            for (int i = 0; i < MUTEX_RETRY_TIMES; i++) {
+                // 1.获取互斥锁，成功后查询数据库并写入新格式的数据
+                if (tryLock(lockKey)) {
+                    try {
+                        dbLoad.increment();
+                        R r = dbFallback.apply(id);
+                        this.setWithLogicalExpire(key, r, time, unit);
+                        return r;
+                    } finally {
+                        unlock(lockKey);
+                    }
+                }
+                // 2.获取锁失败，说明其它节点正在重建，休眠后重新查询Redis
+                Thread.sleep(50);
+                byte[] bytes = getBytes(key);
+                RedisData redisData = isBlank(bytes) ? null : serializer.deserialize(bytes, RedisData.class);
+                if (redisData != null) {
+                    return serializer.convert(redisData.getData(), type);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        // 3.长时间等不到其它节点的结果，降级为直接查询数据库
+        log.warn("等待缓存重建超时，直接查询数据库, key={}", key);
+        dbLoad.increment();
+        return dbFallback.apply(id);
     }
 
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0.先查本地缓存
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        // 0.1.布隆过滤器判断一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
+        byte[] bytes = getBytes(key);
+        // 2.判断是否存在，无法解析的旧数据按未命中处理
+        R cached = isBlank(bytes) ? null : serializer.deserialize(bytes, type);
+        if (cached != null) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            redisHit.increment();
+            putLocal(key, cached, bytes);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (bytes != null && bytes.length == 0) {
             // 返回一个错误信息
+            redisNullHit.increment();
             return null;
         }
+        redisMiss.increment();
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
+        // 4.实现缓存重建，同一个JVM内只有一个线程去竞争互斥锁，其余线程等待它的结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, time, unit), REBUILD_WAIT_MILLIS);
+    }
+
+    private <R, ID> R rebuildWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
         String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
+            for (int i = 0; i < MUTEX_RETRY_TIMES; i++) {
+                // 4.1.获取互斥锁
+                if (tryLock(lockKey)) {
+                    try {
+                        return loadAndSet(key, id, dbFallback, time, unit);
+                    } finally {
+                        // 7.释放锁
+                        unlock(lockKey);
+                    }
+                }
+                // 4.2.获取锁失败，说明其它节点正在重建，休眠后重新查询Redis
                 Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
+                byte[] bytes = getBytes(key);
+                if (bytes != null && bytes.length == 0) {
+                    return null;
+                }
+                R r = isBlank(bytes) ? null : serializer.deserialize(bytes, type);
+                if (r != null) {
+                    putLocal(key, r, bytes);
+                    return r;
+                }
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
         }
-        // 8.返回
+        // 4.3.长时间等不到其它节点的结果，降级为直接查询数据库
+        log.warn("等待缓存重建超时，直接查询数据库, key={}", key);
+        dbLoad.increment();
+        return dbFallback.apply(id);
+    }
+
+    private <R, ID> R loadAndSet(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 根据id查询数据库
+        dbLoad.increment();
+        R r = dbFallback.apply(id);
+        // 5.不存在，返回错误
+        if (r == null) {
+            // 将空值写入redis
+            setBytes(key, new byte[0], TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+            // 返回错误信息
+            return null;
+        }
+        // 6.存在，写入redis
+        this.set(key, r, time, unit);
+        return r;
+    }
+
+    /**
+     * 提前刷新(refresh-ahead)，基于概率提前过期算法(XFetch)
+     * <p>
+     * 每次命中时，若 now - delta * beta * ln(random) >= expireTime 则异步重建缓存，delta为上次重建耗时。
+     * 重建越慢越早刷新；每次访问都是一次独立的判定，所以访问越频繁的key越早被刷新，
+     * 冷门的key则基本不会提前刷新，由Redis的TTL自然淘汰
+     */
+    public <R, ID> R queryWithRefreshAhead(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 0.先查本地缓存
+        RedisData redisData = getLocal(key, RedisData.class);
+        R r = redisData == null ? null : type.cast(redisData.getData());
+        if (redisData == null) {
+            // 0.1.布隆过滤器判断一定不存在，直接返回
+            if (!mightContain(keyPrefix, id)) {
+                return null;
+            }
+            // 1.从redis查询
+            byte[] bytes = getBytes(key);
+            if (bytes != null && bytes.length == 0) {
+                redisNullHit.increment();
+                return null;
+            }
+            redisData = isBlank(bytes) ? null : serializer.deserialize(bytes, RedisData.class);
+            if (redisData == null) {
+                // 2.未命中，同步重建，同一个JVM内的并发请求共享一次加载
+                redisMiss.increment();
+                return singleFlight.execute(key, () -> loadWithRefreshAhead(key, id, dbFallback, time, unit), REBUILD_WAIT_MILLIS);
+            }
+            redisHit.increment();
+            r = serializer.convert(redisData.getData(), type);
+            redisData.setData(r);
+            putLocal(key, redisData, bytes);
+        }
+        // 3.命中，按概率判断是否需要提前刷新
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        if (System.currentTimeMillis() - delta * refreshBeta * Math.log(random) >= expireAt) {
+            refreshAsync(key, LOCK_SHOP_KEY + id, () -> loadWithRefreshAhead(key, id, dbFallback, time, unit));
+        }
+        // 4.返回，即使已经逻辑过期也先返回旧数据
+        return r;
+    }
+
+    private void refreshAsync(String key, String lockKey, Runnable rebuild) {
+        // 当前节点已经在刷新了
+        if (!refreshing.add(key)) {
+            return;
+        }
+        earlyRefresh.increment();
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                // 多个节点之间用互斥锁保证只刷新一次
+                if (tryLock(lockKey)) {
+                    try {
+                        rebuild.run();
+                    } finally {
+                        unlock(lockKey);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("提前刷新缓存失败, key={}", key, e);
+            } finally {
+                refreshing.remove(key);
+            }
+        });
+    }
+
+    private <R, ID> R loadWithRefreshAhead(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 1.查询数据库并记录耗时
+        long begin = System.currentTimeMillis();
+        dbLoad.increment();
+        R r = dbFallback.apply(id);
+        long delta = System.currentTimeMillis() - begin;
+        if (r == null) {
+            setBytes(key, new byte[0], TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+            return null;
+        }
+        // 2.写入逻辑过期时间和重建耗时，真实TTL为逻辑过期时间的2倍，过期后还有一段时间可以返回旧数据
+        RedisData redisData = new RedisData();
+        redisData.setData(r);
+        redisData.setDelta(delta);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        byte[] bytes = serializer.serialize(redisData);
+        setBytes(key, bytes, unit.toSeconds(time) * 2);
+        putLocal(key, redisData, bytes);
         return r;
     }
 
+    /**
+     * 批量查询，解决列表接口逐个查询缓存的问题
+     * <p>
+     * 无论id有多少个，最多只有一次MGET、一次数据库查询和一次管道写入
+     * @param dbFallback 根据缺失的id批量查询数据库，例如 listByIds
+     * @param idGetter 从查询结果中取出id，用于和请求的id对应
+     * @return 与ids顺序一致的结果，不存在的id会被跳过
+     */
+    public <R, ID> List<R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(CacheMode.MUTEX, keyPrefix, ids, type, dbFallback, idGetter, time, unit);
+    }
+
+    /**
+     * 批量查询，按指定策略的格式读写缓存
+     * <p>
+     * LOGICAL_EXPIRE 和 REFRESH_AHEAD 模式下缓存的是 RedisData 包装，已逻辑过期的数据照常返回，由单条查询负责刷新
+     */
+    public <R, ID> List<R> queryBatch(
+            CacheMode mode, String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        boolean wrapped = mode == CacheMode.LOGICAL_EXPIRE || mode == CacheMode.REFRESH_AHEAD;
+        // 1.去重，并保持请求的顺序
+        Map<String, R> found = new HashMap<>();
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            // 1.1.先查本地缓存
+            R local = wrapped ? unwrap(getLocal(key, RedisData.class), type) : getLocal(key, type);
+            if (local != null) {
+                found.put(key, local);
+            } else if (mightContain(keyPrefix, id)) {
+                // 1.2.布隆过滤器判断可能存在的，才需要查询Redis
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return collect(keyPrefix, ids, found);
+        }
+        // 2.一次MGET查询Redis
+        List<String> keys = new ArrayList<>(remoteIds.size());
+        byte[][] rawKeys = new byte[remoteIds.size()][];
+        for (int i = 0; i < remoteIds.size(); i++) {
+            keys.add(keyPrefix + remoteIds.get(i));
+            rawKeys[i] = raw(keys.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<ID> missingIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            Class<?> valueType = wrapped ? RedisData.class : type;
+            Object value = isBlank(bytes) ? null : serializer.deserialize(bytes, valueType);
+            if (value != null) {
+                // 2.1.命中，反序列化
+                redisHit.increment();
+                R r;
+                if (wrapped) {
+                    RedisData redisData = (RedisData) value;
+                    r = serializer.convert(redisData.getData(), type);
+                    redisData.setData(r);
+                } else {
+                    r = type.cast(value);
+                }
+                putLocal(keys.get(i), value, bytes);
+                found.put(keys.get(i), r);
+            } else if (bytes != null && bytes.length == 0) {
+                // 2.2.命中空值
+                redisNullHit.increment();
+            } else {
+                redisMiss.increment();
+                missingIds.add(remoteIds.get(i));
+            }
+        }
+        if (missingIds.isEmpty()) {
+            return collect(keyPrefix, ids, found);
+        }
+        // 3.未命中的id，一次查询数据库
+        dbLoad.increment();
+        List<R> loaded = dbFallback.apply(missingIds);
+        if (loaded != null) {
+            for (R r : loaded) {
+                found.put(keyPrefix + idGetter.apply(r), r);
+            }
+        }
+        // 4.通过管道一次写回Redis，数据库中也不存在的写入空值
+        List<String> nullKeys = new ArrayList<>();
+        for (ID id : missingIds) {
+            if (!found.containsKey(keyPrefix + id)) {
+                nullKeys.add(keyPrefix + id);
+            }
+        }
+        writeBatch(mode, keyPrefix, loaded == null ? Collections.emptyList() : loaded, idGetter, nullKeys, time, unit);
+        return collect(keyPrefix, ids, found);
+    }
+
+    /**
+     * 通过管道批量写入缓存，格式与指定策略的单条查询一致，同时写入本地缓存
+     */
+    public <R> void setBatch(
+            CacheMode mode, String keyPrefix, Collection<R> values, Function<R, ?> idGetter, Long time, TimeUnit unit) {
+        writeBatch(mode, keyPrefix, values, idGetter, Collections.emptyList(), time, unit);
+    }
+
+    private <R> void writeBatch(CacheMode mode, String keyPrefix, Collection<R> values, Function<R, ?> idGetter,
+                                Collection<String> nullKeys, Long time, TimeUnit unit) {
+        boolean wrapped = mode == CacheMode.LOGICAL_EXPIRE || mode == CacheMode.REFRESH_AHEAD;
+        Map<String, byte[]> toWrite = new LinkedHashMap<>();
+        for (R r : values) {
+            String key = keyPrefix + idGetter.apply(r);
+            Object value = r;
+            if (wrapped) {
+                RedisData redisData = new RedisData();
+                redisData.setData(r);
+                redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+                value = redisData;
+            }
+            byte[] bytes = serializer.serialize(value);
+            toWrite.put(key, bytes);
+            putLocal(key, value, bytes);
+        }
+        // 逻辑过期模式不设置TTL，提前刷新模式的TTL为逻辑过期时间的2倍，与单条查询保持一致
+        long ttlSeconds = mode == CacheMode.LOGICAL_EXPIRE ? -1
+                : mode == CacheMode.REFRESH_AHEAD ? unit.toSeconds(time) * 2 : unit.toSeconds(time);
+        long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            toWrite.forEach((key, bytes) -> {
+                if (ttlSeconds > 0) {
+                    connection.setEx(raw(key), ttlSeconds, bytes);
+                } else {
+                    connection.set(raw(key), bytes);
+                }
+            });
+            for (String key : nullKeys) {
+                connection.setEx(raw(key), nullTtlSeconds, new byte[0]);
+            }
+            return null;
+        });
+    }
+
+    private <R> R unwrap(RedisData redisData, Class<R> type) {
+        return redisData == null ? null : type.cast(redisData.getData());
+    }
+
+    private <R, ID> List<R> collect(String keyPrefix, Collection<ID> ids, Map<String, R> found) {
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(keyPrefix + id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 为指定前缀的缓存注册布隆过滤器，并尝试从Redis中加载已持久化的位图
+     * @return true代表已从Redis加载; false代表Redis中不存在(或参数已变化)，需要调用方重新预热
+     */
+    public boolean registerBloomFilter(String keyPrefix, long expectedInsertions, double falseProbability) {
+        BloomFilter filter = new BloomFilter(expectedInsertions, falseProbability);
+        String redisKey = BLOOM_FILTER_KEY + keyPrefix;
+        byte[] bytes = stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.get(raw(redisKey)));
+        // 位图长度与当前参数不一致，说明容量或误判率被修改过，原有位图作废
+        boolean loaded = bytes != null && bytes.length == filter.getBitSize() / 8;
+        if (loaded) {
+            filter.merge(bytes);
+        }
+        bloomFilters.put(keyPrefix, filter);
+        return loaded;
+    }
+
+    /**
+     * 批量预热布隆过滤器，先写本地，最后与Redis中的位图做一次 BITOP OR 合并
+     */
+    public void seedBloomFilter(String keyPrefix, Collection<?> ids, boolean flush) {
+        BloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        for (Object id : ids) {
+            filter.setBits(filter.offsets(String.valueOf(id)));
+        }
+        if (!flush) {
+            return;
+        }
+        byte[] redisKey = raw(BLOOM_FILTER_KEY + keyPrefix);
+        byte[] tmpKey = raw(BLOOM_FILTER_KEY + keyPrefix + ":tmp");
+        byte[] bitmap = filter.toByteArray();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            // 长度不一致的旧位图直接丢弃
+            Long length = connection.strLen(redisKey);
+            if (length != null && length != bitmap.length) {
+                connection.del(redisKey);
+            }
+            connection.set(tmpKey, bitmap);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, redisKey, redisKey, tmpKey);
+            connection.del(tmpKey);
+            return null;
+        });
+    }
+
+    /**
+     * 新增元素到布隆过滤器，写入Redis位图并通知其它节点
+     */
+    public void addToBloomFilter(String keyPrefix, Object id) {
+        BloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        long[] offsets = filter.offsets(String.valueOf(id));
+        filter.setBits(offsets);
+        byte[] redisKey = raw(BLOOM_FILTER_KEY + keyPrefix);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(redisKey, offset, true);
+            }
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(BLOOM_FILTER_ADD_CHANNEL, keyPrefix + id);
+    }
+
+    private void onBloomFilterAdd(String key) {
+        bloomFilters.forEach((keyPrefix, filter) -> {
+            if (key.startsWith(keyPrefix)) {
+                filter.setBits(filter.offsets(key.substring(keyPrefix.length())));
+            }
+        });
+    }
+
+    private boolean mightContain(String keyPrefix, Object id) {
+        BloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter == null || filter.mightContain(String.valueOf(id))) {
+            return true;
+        }
+        bloomReject.increment();
+        return false;
+    }
+
+    /**
+     * 各级缓存的命中情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localEnabled", localEnabled);
+        stats.put("localHit", localHit.sum());
+        stats.put("localMiss", localMiss.sum());
+        stats.put("localSize", localCache.size());
+        stats.put("localWeight", localCache.weight());
+        stats.put("redisHit", redisHit.sum());
+        stats.put("redisNullHit", redisNullHit.sum());
+        stats.put("redisMiss", redisMiss.sum());
+        stats.put("dbLoad", dbLoad.sum());
+        stats.put("bloomReject", bloomReject.sum());
+        stats.put("singleFlightShared", singleFlight.getShared());
+        stats.put("singleFlightInFlight", singleFlight.getInFlight());
+        stats.put("earlyRefresh", earlyRefresh.sum());
+        // 布隆过滤器的内存占用
+        Map<String, Object> blooms = new LinkedHashMap<>();
+        bloomFilters.forEach((keyPrefix, filter) -> {
+            Map<String, Object> bloom = new LinkedHashMap<>();
+            bloom.put("expectedInsertions", filter.getExpectedInsertions());
+            bloom.put("falseProbability", filter.getFalseProbability());
+            bloom.put("hashFunctions", filter.getHashFunctions());
+            bloom.put("bitSize", filter.getBitSize());
+            bloom.put("memoryBytes", filter.getBitSize() / 8);
+            bloom.put("approximateCount", filter.approximateCount());
+            blooms.put(keyPrefix, bloom);
+        });
+        stats.put("bloomFilters", blooms);
+        return stats;
+    }
+
+    private <R> R getLocal(String key, Class<R> type) {
+        // 每次查询都会经过这里，顺便统计访问频率
+        hotKeyDetector.record(key);
+        if (!localEnabled) {
+            return null;
+        }
+        Object value = localCache.get(key);
+        if (type.isInstance(value)) {
+            localHit.increment();
+            return type.cast(value);
+        }
+        localMiss.increment();
+        return null;
+    }
+
+    private void putLocal(String key, Object value, byte[] bytes) {
+        if (!localEnabled) {
+            return;
+        }
+        if (!hotKeyDetector.isEnabled()) {
+            localCache.put(key, value, bytes.length);
+        } else if (hotKeyDetector.isHot(key)) {
+            // 只有热点key才提升到本地缓存
+            localCache.put(key, value, bytes.length, hotKeyLocalTtlMillis);
+        }
+    }
+
+    private byte[] getBytes(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(raw(key)));
+    }
+
+    private void setBytes(String key, byte[] value, long ttlSeconds) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (ttlSeconds > 0) {
+                connection.setEx(raw(key), ttlSeconds, value);
+            } else {
+                connection.set(raw(key), value);
+            }
+            return null;
+        });
+    }
+
+    private static boolean isBlank(byte[] bytes) {
+        return bytes == null || bytes.length == 0;
+    }
+
+    private static byte[] raw(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -0,0 +1,331 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_RETRY_GROUP;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_RETRY_KEY;
+
+/**
+ * 缓存失效管道
+ * <p>
+ * 更新数据库后立即删除缓存，并在延迟一段时间后再删除一次(延迟双删)，
+ * 覆盖"删除缓存后、数据库提交前"被其它线程用旧数据重建缓存的情况；
+ * 删除失败的key写入Redis Stream重试队列，由消费者组异步重试直到成功。
+ * Redis不可用时暂存在内存中，恢复后再写入重试队列；进程在此期间重启会丢失这部分key，只能等缓存自然过期
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheClient cacheClient;
+
+    /**
+     * 第二次删除的延迟，应大于一次缓存重建(查库+写缓存)的耗时
+     */
+    private final long delayMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Thread retryWorker = new Thread(this::retryLoop, "cache-invalidate-retry");
+    private volatile boolean running = true;
+
+    /**
+     * 节点标识，主机名-进程号，作为组内唯一的消费者名称
+     */
+    private final String nodeId = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+
+    /**
+     * pending消息空闲超过该时间，视为其消费者已失效，由其它节点接管
+     */
+    private final long reclaimIdleMillis;
+
+    /**
+     * 写入重试队列也失败的key，连同首次请求失效的时间，只保存在内存中，定时重新投递
+     */
+    private final Queue<Map<String, String>> unsent = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder delayedDeleted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder lagTotal = new LongAdder();
+    private final LongAdder lagCount = new LongAdder();
+    private final AtomicLong lagMax = new AtomicLong();
+
+    public CacheInvalidator(StringRedisTemplate stringRedisTemplate,
+                            CacheClient cacheClient,
+                            @Value("${hmdp.cache.invalidate.delay-millis:500}") long delayMillis,
+                            @Value("${hmdp.cache.invalidate.reclaim-idle-millis:30000}") long reclaimIdleMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheClient = cacheClient;
+        this.delayMillis = delayMillis;
+        this.reclaimIdleMillis = reclaimIdleMillis;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 创建消费者组，stream不存在时一并创建
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(raw(CACHE_INVALIDATE_RETRY_KEY), CACHE_INVALIDATE_RETRY_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP，组已存在
+            log.debug("失效重试队列的消费者组已存在: {}", e.getMessage());
+        }
+        retryWorker.setDaemon(true);
+        retryWorker.start();
+        scheduler.scheduleWithFixedDelay(this::flushUnsent, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::reclaimPending, reclaimIdleMillis, reclaimIdleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 失效单个key
+     */
+    public void invalidate(String key) {
+        invalidateAll(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量失效，批量更新时使用，一批key只占用一次管道往返和一个延迟任务
+     */
+    public void invalidateAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        long requestedAt = System.currentTimeMillis();
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(keys));
+        // 1.第一次删除
+        deleteOrEnqueue(distinct, requestedAt);
+        invalidated.add(distinct.size());
+        // 2.延迟后再删除一次
+        scheduler.schedule(() -> {
+            deleteOrEnqueue(distinct, requestedAt);
+            delayedDeleted.add(distinct.size());
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void deleteOrEnqueue(List<String> keys, long requestedAt) {
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            List<String> batch = keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()));
+            // 本地缓存无论Redis是否可用都先清除
+            batch.forEach(cacheClient::evictLocal);
+            try {
+                delete(batch);
+                recordLag(requestedAt, batch.size());
+            } catch (Exception e) {
+                log.warn("删除缓存失败，加入重试队列: {}", batch, e);
+                failed.add(batch.size());
+                enqueue(batch, requestedAt);
+            }
+        }
+    }
+
+    /**
+     * 管道批量删除，并广播给其它节点清除本地缓存
+     */
+    private void delete(Collection<String> keys) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.del(raw(key));
+                connection.publish(raw(CACHE_INVALIDATE_CHANNEL), raw(key));
+            }
+            return null;
+        });
+    }
+
+    private void enqueue(Collection<String> keys, long requestedAt) {
+        Map<String, String> entry = new HashMap<>();
+        entry.put("keys", String.join(",", keys));
+        entry.put("ts", String.valueOf(requestedAt));
+        try {
+            stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(entry).withStreamKey(CACHE_INVALIDATE_RETRY_KEY));
+        } catch (Exception e) {
+            // Redis不可用，暂存在内存中
+            unsent.add(entry);
+        }
+    }
+
+    private void flushUnsent() {
+        Map<String, String> entry;
+        while ((entry = unsent.peek()) != null) {
+            try {
+                stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(entry).withStreamKey(CACHE_INVALIDATE_RETRY_KEY));
+                unsent.poll();
+            } catch (Exception e) {
+                // 仍不可用，下次再试
+                return;
+            }
+        }
+    }
+
+    /**
+     * 接管其它节点遗留的pending消息
+     * <p>
+     * 每个节点是组内独立的消费者，节点宕机后它已读取但未确认的消息只在自己的pending-list中，
+     * 这里用 XCLAIM 把空闲超过阈值的消息转移给本节点并重试。
+     * XCLAIM 带有 min-idle-time，多个节点同时接管时只有一个能成功
+     */
+    private void reclaimPending() {
+        try {
+            RecordId[] stale = stringRedisTemplate.opsForStream()
+                    .pending(CACHE_INVALIDATE_RETRY_KEY, CACHE_INVALIDATE_RETRY_GROUP, Range.unbounded(), BATCH_SIZE)
+                    .stream()
+                    .filter(message -> message.getElapsedTimeSinceLastDelivery().toMillis() >= reclaimIdleMillis)
+                    .map(PendingMessage::getId)
+                    .toArray(RecordId[]::new);
+            if (stale.length == 0) {
+                return;
+            }
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(raw(CACHE_INVALIDATE_RETRY_KEY), CACHE_INVALIDATE_RETRY_GROUP,
+                            nodeId, Duration.ofMillis(reclaimIdleMillis), stale));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            log.warn("接管了{}条空闲超过{}ms的缓存失效重试消息", claimed.size(), reclaimIdleMillis);
+            retry(claimed.stream()
+                    .map(record -> record.deserialize(RedisSerializer.string()))
+                    .collect(Collectors.toList()));
+        } catch (Exception e) {
+            log.warn("接管缓存失效重试消息失败", e);
+        }
+    }
+
+    /**
+     * 消费重试队列，出现异常时转为处理pending-list
+     */
+    private void retryLoop() {
+        Consumer consumer = Consumer.from(CACHE_INVALIDATE_RETRY_GROUP, nodeId);
+        boolean pending = true;
+        while (running) {
+            try {
+                // 1.先处理pending-list，再读取新消息
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        pending ? StreamReadOptions.empty().count(100) : StreamReadOptions.empty().count(100).block(Duration.ofSeconds(2)),
+                        StreamOffset.create(CACHE_INVALIDATE_RETRY_KEY, pending ? ReadOffset.from("0") : ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    pending = false;
+                    continue;
+                }
+                retry(list);
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("处理缓存失效重试队列异常", e);
+                pending = true;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void retry(List<? extends MapRecord<String, ?, ?>> list) {
+        // 2.合并成一批删除
+        List<String> keys = new ArrayList<>();
+        List<RecordId> ids = new ArrayList<>(list.size());
+        long oldest = Long.MAX_VALUE;
+        for (MapRecord<String, ?, ?> record : list) {
+            Map<?, ?> value = record.getValue();
+            keys.addAll(StrUtil.split(value.get("keys").toString(), ','));
+            oldest = Math.min(oldest, Long.parseLong(value.get("ts").toString()));
+            ids.add(record.getId());
+        }
+        delete(keys);
+        keys.forEach(cacheClient::evictLocal);
+        recordLag(oldest, keys.size());
+        retried.add(keys.size());
+        // 3.确认并删除消息，重试队列只保留未完成的条目
+        RecordId[] recordIds = ids.toArray(new RecordId[0]);
+        stringRedisTemplate.opsForStream().acknowledge(CACHE_INVALIDATE_RETRY_KEY, CACHE_INVALIDATE_RETRY_GROUP, recordIds);
+        stringRedisTemplate.opsForStream().delete(CACHE_INVALIDATE_RETRY_KEY, recordIds);
+    }
+
+    private void recordLag(long requestedAt, int count) {
+        long lag = System.currentTimeMillis() - requestedAt;
+        lagTotal.add(lag * count);
+        lagCount.add(count);
+        lagMax.accumulateAndGet(lag, Math::max);
+    }
+
+    /**
+     * 失效次数、重试情况与失效延迟(从请求失效到缓存真正被删除的时间)
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("invalidated", invalidated.sum());
+        stats.put("delayedDeleted", delayedDeleted.sum());
+        stats.put("failed", failed.sum());
+        stats.put("retried", retried.sum());
+        stats.put("unsent", unsent.size());
+        long count = lagCount.sum();
+        stats.put("avgLagMillis", count == 0 ? 0 : lagTotal.sum() / count);
+        stats.put("maxLagMillis", lagMax.get());
+        try {
+            stats.put("retryPending", stringRedisTemplate.opsForStream()
+                    .pending(CACHE_INVALIDATE_RETRY_KEY, CACHE_INVALIDATE_RETRY_GROUP).getTotalPendingMessages());
+            stats.put("retryQueued", stringRedisTemplate.opsForStream().size(CACHE_INVALIDATE_RETRY_KEY));
+        } catch (Exception e) {
+            stats.put("retryPending", "unknown");
+        }
+        return stats;
+    }
+
+    private static byte[] raw(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        scheduler.shutdown();
+        retryWorker.interrupt();
+    }
+}
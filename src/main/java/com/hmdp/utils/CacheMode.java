@@ -0,0 +1,23 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient 的缓存查询策略
+ */
+public enum CacheMode {
+    /**
+     * 缓存空值解决缓存穿透
+     */
+    PASS_THROUGH,
+    /**
+     * 互斥锁解决缓存击穿
+     */
+    MUTEX,
+    /**
+     * 逻辑过期解决缓存击穿，过期后返回旧数据并异步重建
+     */
+    LOGICAL_EXPIRE,
+    /**
+     * 提前刷新，在过期前按概率异步重建，重建越慢、访问越频繁越早刷新
+     */
+    REFRESH_AHEAD
+}
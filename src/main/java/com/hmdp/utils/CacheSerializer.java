@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的序列化方式
+ */
+public interface CacheSerializer {
+
+    /**
+     * 序列化为写入Redis的字节
+     */
+    byte[] serialize(Object value);
+
+    /**
+     * 从Redis读取的字节反序列化
+     * @return 无法识别的格式返回null，按未命中处理
+     */
+    <T> T deserialize(byte[] bytes, Class<T> type);
+
+    /**
+     * 将反序列化后 RedisData 中的 data 转换为目标类型
+     */
+    default <T> T convert(Object data, Class<T> type) {
+        return type.cast(data);
+    }
+}
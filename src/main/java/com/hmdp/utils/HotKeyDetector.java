@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * 热点key探测
+ * <p>
+ * 用滑动窗口内的多个 Count-Min Sketch 统计访问频率，窗口按格滚动；
+ * 频率最高的若干key作为候选集合，其中超过阈值的前K个即为热点key，访问量下降后自动移出
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private final boolean enabled;
+    private final int width;
+    private final int slots;
+    private final long threshold;
+    private final int topK;
+    private final double sampleRate;
+
+    /**
+     * 每一格一个 Count-Min Sketch，下标为 slot * DEPTH * width + row * width + column
+     */
+    private final AtomicIntegerArray counters;
+    private volatile int current;
+
+    /**
+     * 候选key及其最近一次估算的频率
+     */
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+    private final long minAdmission;
+    private volatile long admissionFloor;
+    private volatile Map<String, Long> hotKeys = new LinkedHashMap<>();
+
+    private final List<Consumer<String>> demoteListeners = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+    public HotKeyDetector(@Value("${hmdp.hot-key.enabled:false}") boolean enabled,
+                          @Value("${hmdp.hot-key.window-seconds:10}") int windowSeconds,
+                          @Value("${hmdp.hot-key.slots:10}") int slots,
+                          @Value("${hmdp.hot-key.threshold:500}") long threshold,
+                          @Value("${hmdp.hot-key.top-k:20}") int topK,
+                          @Value("${hmdp.hot-key.sample-rate:1.0}") double sampleRate,
+                          @Value("${hmdp.hot-key.sketch-width:4096}") int width) {
+        this.enabled = enabled;
+        this.slots = slots;
+        this.threshold = threshold;
+        this.topK = topK;
+        this.sampleRate = sampleRate;
+        this.width = width;
+        this.counters = new AtomicIntegerArray(slots * DEPTH * width);
+        // 持续的热点key平均每格至少有 threshold/slots 次访问，低于该值的key不必进入候选集合
+        this.minAdmission = Math.max(1, threshold / slots);
+        this.admissionFloor = minAdmission;
+        if (enabled) {
+            long slotMillis = TimeUnit.SECONDS.toMillis(windowSeconds) / slots;
+            ticker.scheduleAtFixedRate(this::tick, slotMillis, slotMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次访问，按采样率抽样
+     */
+    public void record(String key) {
+        if (!enabled || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+        int base = current * DEPTH * width;
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int row = 0; row < DEPTH; row++) {
+            counters.incrementAndGet(base + row * width + index(h1, h2, row));
+        }
+        // 频率达到候选门槛的key加入候选集合
+        if (!candidates.containsKey(key)) {
+            long estimate = estimate(key);
+            if (estimate >= admissionFloor) {
+                candidates.put(key, estimate);
+            }
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 当前的热点key及窗口内的估算访问次数，按次数倒序
+     */
+    public Map<String, Long> topK() {
+        return hotKeys;
+    }
+
+    /**
+     * 注册热点key降级时的回调，例如清除本地副本
+     */
+    public void onDemote(Consumer<String> listener) {
+        demoteListeners.add(listener);
+    }
+
+    /**
+     * 估算key在整个窗口内的访问次数(已按采样率还原)
+     */
+    public long estimate(String key) {
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long total = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            int base = slot * DEPTH * width;
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counters.get(base + row * width + index(h1, h2, row)));
+            }
+            total += min;
+        }
+        return (long) (total / sampleRate);
+    }
+
+    private int index(int h1, int h2, int row) {
+        return ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+    }
+
+    /**
+     * 窗口滚动一格，并重新计算热点key
+     */
+    private void tick() {
+        try {
+            // 1.清空即将使用的格子
+            int next = (current + 1) % slots;
+            int base = next * DEPTH * width;
+            for (int i = 0; i < DEPTH * width; i++) {
+                counters.set(base + i, 0);
+            }
+            current = next;
+            // 2.重新估算候选key，只保留频率最高的一部分
+            List<Map.Entry<String, Long>> ranked = new ArrayList<>();
+            for (String key : candidates.keySet()) {
+                long estimate = estimate(key);
+                if (estimate == 0) {
+                    candidates.remove(key);
+                } else {
+                    candidates.put(key, estimate);
+                    ranked.add(new AbstractMap.SimpleEntry<>(key, estimate));
+                }
+            }
+            ranked.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+            for (int i = topK * 2; i < ranked.size(); i++) {
+                candidates.remove(ranked.get(i).getKey());
+            }
+            admissionFloor = Math.max(minAdmission, ranked.size() >= topK * 2 ? ranked.get(topK * 2 - 1).getValue() : 0);
+            // 3.超过阈值的前K个为热点key
+            Map<String, Long> hot = new LinkedHashMap<>();
+            for (int i = 0; i < ranked.size() && hot.size() < topK; i++) {
+                if (ranked.get(i).getValue() >= threshold) {
+                    hot.put(ranked.get(i).getKey(), ranked.get(i).getValue());
+                }
+            }
+            Set<String> demoted = new HashSet<>(hotKeys.keySet());
+            demoted.removeAll(hot.keySet());
+            hotKeys = hot;
+            // 4.通知降级
+            for (String key : demoted) {
+                log.debug("热点key降级: {}", key);
+                demoteListeners.forEach(listener -> listener.accept(key));
+            }
+        } catch (Exception e) {
+            log.error("热点key统计异常", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 基于Hutool的JSON序列化，兼容旧版本写入的缓存
+ */
+@Slf4j
+public class JsonCacheSerializer implements CacheSerializer {
+
+    @Override
+    public byte[] serialize(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        try {
+            if (type.isArray()) {
+                // 数组按元素类型逐个解析
+                List<?> list = JSONUtil.toList(JSONUtil.parseArray(json), type.getComponentType());
+                return type.cast(list.toArray((Object[]) Array.newInstance(type.getComponentType(), list.size())));
+            }
+            return JSONUtil.toBean(json, type);
+        } catch (RuntimeException e) {
+            // 不是合法的JSON或与目标类型不匹配，按未命中处理，由调用方重建缓存
+            log.warn("缓存反序列化失败, type={}", type.getName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public <T> T convert(Object data, Class<T> type) {
+        // JSON反序列化RedisData时，data只能被解析为JSONObject，需要再转换一次
+        if (data instanceof JSONObject) {
+            return JSONUtil.toBean((JSONObject) data, type);
+        }
+        return type.cast(data);
+    }
+}
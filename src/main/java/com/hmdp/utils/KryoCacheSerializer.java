@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.esotericsoftware.kryo.util.Pool;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+/**
+ * 基于Kryo的二进制序列化
+ * <p>
+ * 格式为 2字节魔数 + Kryo编码，魔数用于和JSON格式区分，第二个字节同时是格式版本。
+ * 实体类按字段顺序编码，不写字段名；包装逻辑过期时间的 RedisData 会随缓存模式增加字段，
+ * 版本2起用 CompatibleFieldSerializer 按字段名编码，增删字段后新旧节点写入的数据可以互相读取。
+ * 写入使用版本2，版本1的数据仍可读取，直到过期或被重建
+ */
+@Slf4j
+public class KryoCacheSerializer implements CacheSerializer {
+
+    private static final byte MAGIC_0 = (byte) 0xC5;
+    private static final byte VERSION_FIELD = 0x01;
+    private static final byte VERSION_COMPATIBLE = 0x02;
+
+    private static final Pool<Kryo> KRYO_POOL = kryoPool(true);
+    private static final Pool<Kryo> LEGACY_KRYO_POOL = kryoPool(false);
+
+    private static Pool<Kryo> kryoPool(boolean compatible) {
+        return new Pool<Kryo>(true, false, 64) {
+            @Override
+            protected Kryo create() {
+                Kryo kryo = new Kryo();
+                kryo.setRegistrationRequired(false);
+                kryo.setReferences(false);
+                // 注册常用类型，只写类型编号不写类名。注意：编号一旦上线不能修改
+                if (compatible) {
+                    kryo.register(RedisData.class, new CompatibleFieldSerializer<>(kryo, RedisData.class), 100);
+                } else {
+                    kryo.register(RedisData.class, 100);
+                }
+                kryo.register(LocalDateTime.class, 101);
+                kryo.register(ArrayList.class, 102);
+                kryo.register(Shop.class, 110);
+                kryo.register(ShopType.class, 111);
+                kryo.register(Voucher.class, 112);
+                kryo.register(UserDTO.class, 113);
+                kryo.register(Voucher[].class, 114);
+                return kryo;
+            }
+        };
+    }
+
+    private static final Pool<Output> OUTPUT_POOL = new Pool<Output>(true, false, 64) {
+        @Override
+        protected Output create() {
+            return new Output(1024, -1);
+        }
+    };
+
+    public static boolean isKryo(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC_0
+                && (bytes[1] == VERSION_FIELD || bytes[1] == VERSION_COMPATIBLE);
+    }
+
+    @Override
+    public byte[] serialize(Object value) {
+        Kryo kryo = KRYO_POOL.obtain();
+        Output output = OUTPUT_POOL.obtain();
+        try {
+            output.reset();
+            output.writeByte(MAGIC_0);
+            output.writeByte(VERSION_COMPATIBLE);
+            kryo.writeObject(output, value);
+            return output.toBytes();
+        } finally {
+            OUTPUT_POOL.free(output);
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        if (!isKryo(bytes)) {
+            return null;
+        }
+        Pool<Kryo> pool = bytes[1] == VERSION_COMPATIBLE ? KRYO_POOL : LEGACY_KRYO_POOL;
+        Kryo kryo = pool.obtain();
+        try {
+            Input input = new Input(bytes, 2, bytes.length - 2);
+            return kryo.readObject(input, type);
+        } catch (KryoException e) {
+            // 版本1的数据在类的字段发生变化后无法解析，按未命中处理，由调用方重建缓存
+            log.warn("缓存反序列化失败, type={}", type.getName(), e);
+            return null;
+        } finally {
+            pool.free(kryo);
+        }
+    }
+}
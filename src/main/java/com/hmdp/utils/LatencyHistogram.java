@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时直方图
+ * <p>
+ * 按微秒数的二进制位数分桶，第i个桶记录 [2^(i-1), 2^i) 微秒的次数，记录只是一次 LongAdder 累加，
+ * 百分位数取所在桶的上界，误差在2倍以内，足够观察延迟的量级和长尾
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * 百分位数(微秒)，取所在桶的上界
+     */
+    public long percentile(double p) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= threshold) {
+                return i == 0 ? 0 : Math.min(1L << i, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long total = count.sum();
+        stats.put("count", total);
+        stats.put("avgMicros", total == 0 ? 0 : totalMicros.sum() / total);
+        stats.put("p50Micros", percentile(0.5));
+        stats.put("p99Micros", percentile(0.99));
+        stats.put("p999Micros", percentile(0.999));
+        stats.put("maxMicros", maxMicros.get());
+        return stats;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内的一级缓存(L1)，按权重(序列化后的字节数)限制容量，并带有统一的TTL
+ * <p>
+ * 基于 access-order 的 LinkedHashMap 实现 LRU，超出总权重时从最久未访问的条目开始淘汰
+ */
+public class LocalCache<V> {
+
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry<V>> map = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight;
+
+    public LocalCache(long maxWeight, long ttlMillis) {
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized V get(String key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        // 过期则移除
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 写入缓存
+     * @param weight 条目权重，一般为序列化后的字节数
+     */
+    public void put(String key, V value, long weight) {
+        put(key, value, weight, ttlMillis);
+    }
+
+    public synchronized void put(String key, V value, long weight, long ttlMillis) {
+        // 单个条目超过总容量，直接放弃缓存
+        if (value == null || weight > maxWeight) {
+            return;
+        }
+        remove(key);
+        map.put(key, new Entry<>(value, weight, System.currentTimeMillis() + ttlMillis));
+        this.weight += weight;
+        // 超出容量，淘汰最久未访问的条目
+        Iterator<Map.Entry<String, Entry<V>>> it = map.entrySet().iterator();
+        while (this.weight > maxWeight && it.hasNext()) {
+            this.weight -= it.next().getValue().weight;
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    private void remove(String key) {
+        Entry<V> old = map.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long expireAt;
+
+        private Entry(V value, long weight, long expireAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+/**
+ * 迁移模式：按新格式写入，读取时根据魔数自动识别新旧两种格式
+ * <p>
+ * 用于从JSON切换到二进制格式的过渡期，旧格式的缓存过期或被重建后即完成迁移
+ */
+public class MigratingCacheSerializer implements CacheSerializer {
+
+    private final KryoCacheSerializer kryo = new KryoCacheSerializer();
+    private final JsonCacheSerializer json = new JsonCacheSerializer();
+
+    @Override
+    public byte[] serialize(Object value) {
+        return kryo.serialize(value);
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        if (KryoCacheSerializer.isKryo(bytes)) {
+            return kryo.deserialize(bytes, type);
+        }
+        return json.deserialize(bytes, type);
+    }
+
+    @Override
+    public <T> T convert(Object data, Class<T> type) {
+        return json.convert(data, type);
+    }
+}
@@ -0,0 +1,255 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内的持久化订单队列
+ * <p>
+ * 固定容量的环形队列，多个生产者用CAS无锁地占用序号，单个消费者按序号顺序读取。
+ * 槽位直接存放在内存映射的日志文件中，序号为 s 的订单写在第 s % capacity 个槽位，
+ * 写入后即使进程崩溃，数据也在操作系统的页缓存中；只有消费者确认(commit)之后，槽位才能被后面的订单覆盖。
+ * 重新打开时扫描所有槽位，校验通过且序号不小于已确认位置的记录即为未处理的订单。
+ * 打开时对日志文件加排他锁，同一个日志只能被一个进程使用
+ */
+public class OrderJournalQueue implements Closeable {
+
+    private static final long MAGIC = 0x484d44504f524431L;
+    private static final int HEADER_BYTES = 64;
+    /**
+     * 每条记录: id, userId, voucherId, 序号, 校验和
+     */
+    private static final int RECORD_BYTES = 40;
+
+    private final int capacity;
+    private final int mask;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * 每个槽位已发布的序号，消费者以此判断槽位是否已写完
+     */
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    /**
+     * 消费者读取到的位置，只由消费线程访问
+     */
+    private long readHead;
+    /**
+     * 队列为空时阻塞等待的消费线程，入队后唤醒
+     */
+    private volatile Thread waiter;
+
+    private final List<VoucherOrder> recovered = new ArrayList<>();
+    /**
+     * 重放的订单之后的第一个序号，重放完成(commitRecovered)后才确认到这里
+     */
+    private long recoveredEnd;
+
+    /**
+     * @param capacity 队列容量，向上取整为2的幂
+     */
+    public OrderJournalQueue(File journal, int capacity) throws IOException {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.published = new AtomicLongArray(this.capacity);
+        File dir = journal.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建订单日志目录: " + dir);
+        }
+        this.file = new RandomAccessFile(journal, "rw");
+        // 两个进程映射同一个日志会互相覆盖槽位，锁已被持有时启动失败
+        FileLock lock;
+        try {
+            lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            file.close();
+            throw new IOException("订单日志已被其它进程使用: " + journal);
+        }
+        long size = HEADER_BYTES + (long) this.capacity * RECORD_BYTES;
+        boolean fresh = file.length() == 0;
+        if (!fresh && file.length() != size) {
+            file.close();
+            throw new IOException("订单日志的容量与配置不一致: " + journal);
+        }
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (fresh) {
+            buffer.putLong(0, MAGIC);
+            buffer.putLong(8, this.capacity);
+            buffer.putLong(16, 0);
+        } else if (buffer.getLong(0) != MAGIC) {
+            file.close();
+            throw new IOException("不是订单日志文件: " + journal);
+        }
+        recover();
+    }
+
+    /**
+     * 扫描日志，找出上次退出时未确认的订单
+     */
+    private void recover() {
+        long checkpoint = buffer.getLong(16);
+        long next = checkpoint;
+        List<long[]> records = new ArrayList<>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = HEADER_BYTES + slot * RECORD_BYTES;
+            long id = buffer.getLong(offset);
+            long userId = buffer.getLong(offset + 8);
+            long voucherId = buffer.getLong(offset + 16);
+            long seq = buffer.getLong(offset + 24);
+            // 校验和不一致说明是未写完的记录，序号小于已确认位置说明已处理过
+            if (buffer.getLong(offset + 32) != checksum(id, userId, voucherId, seq)
+                    || seq < checkpoint || (seq & mask) != slot) {
+                continue;
+            }
+            records.add(new long[]{seq, id, userId, voucherId});
+            next = Math.max(next, seq + 1);
+        }
+        records.sort(Comparator.comparingLong(record -> record[0]));
+        for (long[] record : records) {
+            recovered.add(new VoucherOrder().setId(record[1]).setUserId(record[2]).setVoucherId(record[3]));
+        }
+        // 未确认的订单由调用者直接处理，队列从最大序号之后继续。
+        // 确认位置仍停在日志中的检查点，重放完成之前这些订单的槽位不能被新订单覆盖
+        tail.set(next);
+        committed.set(checkpoint);
+        readHead = next;
+        recoveredEnd = next;
+    }
+
+    /**
+     * 上次退出时未处理完的订单，按入队顺序排列
+     */
+    public List<VoucherOrder> recovered() {
+        return recovered;
+    }
+
+    /**
+     * 确认重放的订单已处理，释放它们的槽位，需要在第一次 commit 之前调用
+     */
+    public void commitRecovered() {
+        recovered.clear();
+        committed.set(recoveredEnd);
+        buffer.putLong(16, recoveredEnd);
+        buffer.force();
+    }
+
+    /**
+     * 入队，写入日志后才对消费者可见
+     * @return 队列已满时返回false
+     */
+    public boolean offer(long id, long userId, long voucherId) {
+        // 1.CAS占用序号，未确认的订单达到容量时不能再占用，否则会覆盖尚未处理的槽位
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - committed.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        // 2.写入槽位，校验和最后写入
+        int slot = (int) (seq & mask);
+        int offset = HEADER_BYTES + slot * RECORD_BYTES;
+        buffer.putLong(offset, id);
+        buffer.putLong(offset + 8, userId);
+        buffer.putLong(offset + 16, voucherId);
+        buffer.putLong(offset + 24, seq);
+        buffer.putLong(offset + 32, checksum(id, userId, voucherId, seq));
+        // 3.发布，并唤醒等待中的消费者
+        published.set(slot, seq + 1);
+        Thread consumer = waiter;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * 队列为空时阻塞消费线程，直到有订单入队、超时或线程被中断，只能由消费线程调用
+     */
+    public void awaitOrders(long timeoutNanos) {
+        waiter = Thread.currentThread();
+        // 登记之后再检查一次，避免错过登记之前入队时的唤醒
+        if (published.get((int) (readHead & mask)) != readHead + 1) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        waiter = null;
+    }
+
+    /**
+     * 读取最多 max 个订单，只能由单个消费线程调用，处理完成后需要 commit
+     */
+    public int drain(List<VoucherOrder> out, int max) {
+        int n = 0;
+        while (n < max) {
+            int slot = (int) (readHead & mask);
+            if (published.get(slot) != readHead + 1) {
+                break;
+            }
+            int offset = HEADER_BYTES + slot * RECORD_BYTES;
+            out.add(new VoucherOrder()
+                    .setId(buffer.getLong(offset))
+                    .setUserId(buffer.getLong(offset + 8))
+                    .setVoucherId(buffer.getLong(offset + 16)));
+            readHead++;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 确认已读取的订单都已处理，释放槽位并记录确认位置
+     * @param force 是否立即刷盘，否则由操作系统异步写回
+     */
+    public void commit(boolean force) {
+        committed.set(readHead);
+        buffer.putLong(16, readHead);
+        if (force) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * 已入队但未确认的订单数
+     */
+    public long size() {
+        return tail.get() - committed.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private static long checksum(long id, long userId, long voucherId, long seq) {
+        long h = MAGIC;
+        h = (h ^ id) * 0x9E3779B97F4A7C15L;
+        h = (h ^ userId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ voucherId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ seq) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+}
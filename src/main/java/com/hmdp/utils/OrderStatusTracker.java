@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的处理状态
+ * <p>
+ * 状态保存在按订单id的时间戳(秒)分桶的hash中: order:status:{时间戳} 序列号 状态，字段和值都很短，整个桶带有过期时间。
+ * 抢购成功时由秒杀脚本写入排队中，消费者写库后改为已完成或失败，并广播给所有节点，唤醒等待该订单的长轮询请求
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker {
+
+    public static final String QUEUED = "q";
+    public static final String PERSISTED = "p";
+    public static final String FAILED = "f";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long ttlSeconds;
+    private final long maxWaitMillis;
+    private final int maxWaiters;
+
+    /**
+     * 每个订单上等待状态变化的长轮询请求
+     */
+    private final Map<Long, Set<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder longPolls = new LongAdder();
+    private final LongAdder notified = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public OrderStatusTracker(StringRedisTemplate stringRedisTemplate,
+                              RedisMessageListenerContainer listenerContainer,
+                              @Value("${hmdp.seckill.order.status.ttl-seconds:3600}") long ttlSeconds,
+                              @Value("${hmdp.seckill.order.status.max-wait-millis:30000}") long maxWaitMillis,
+                              @Value("${hmdp.seckill.order.status.max-waiters:10000}") int maxWaiters) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlSeconds = ttlSeconds;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxWaiters = maxWaiters;
+        // 消息格式: 订单id:状态,订单id:状态...
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            for (String item : body.split(",")) {
+                int colon = item.indexOf(':');
+                wakeUp(Long.parseLong(item.substring(0, colon)), item.substring(colon + 1));
+            }
+        }, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单id的时间戳部分所在的桶
+     */
+    public static String statusKey(long timestamp) {
+        return ORDER_STATUS_KEY + timestamp;
+    }
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * 批量更新订单状态，一次往返写入所有状态并广播
+     */
+    public void update(Collection<Long> orderIds, String state) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        byte[] value = state.getBytes(StandardCharsets.UTF_8);
+        StringBuilder message = new StringBuilder();
+        for (Long orderId : orderIds) {
+            if (message.length() > 0) {
+                message.append(',');
+            }
+            message.append(orderId).append(':').append(state);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long orderId : orderIds) {
+                byte[] key = statusKey(RedisIdWorker.timestampOf(orderId)).getBytes(StandardCharsets.UTF_8);
+                connection.hSet(key, String.valueOf(RedisIdWorker.sequenceOf(orderId)).getBytes(StandardCharsets.UTF_8), value);
+                connection.expire(key, ttlSeconds);
+            }
+            connection.publish(ORDER_STATUS_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                    message.toString().getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态
+     * @return 状态，不存在(id无效或已过期)时返回null
+     */
+    public String query(long orderId) {
+        queries.increment();
+        Object state = stringRedisTemplate.opsForHash().get(
+                statusKey(RedisIdWorker.timestampOf(orderId)), String.valueOf(RedisIdWorker.sequenceOf(orderId)));
+        return state == null ? null : state.toString();
+    }
+
+    /**
+     * 查询订单状态，订单仍在排队时最多等待 waitMillis，状态变化后立即返回
+     */
+    public DeferredResult<Result> await(long orderId, long waitMillis) {
+        long timeout = Math.min(waitMillis, maxWaitMillis);
+        DeferredResult<Result> result = new DeferredResult<>(timeout > 0 ? timeout : null, () -> {
+            timeouts.increment();
+            return Result.ok(view(orderId, query(orderId)));
+        });
+        // 1.不在排队中，或者不等待，直接返回
+        String state = query(orderId);
+        if (!QUEUED.equals(state) || timeout <= 0 || waiting.get() >= maxWaiters) {
+            result.setResult(Result.ok(view(orderId, state)));
+            return result;
+        }
+        // 2.登记等待，请求结束(唤醒、超时或断开)时移除
+        longPolls.increment();
+        waiters.computeIfAbsent(orderId, id -> ConcurrentHashMap.newKeySet()).add(result);
+        waiting.incrementAndGet();
+        result.onCompletion(() -> {
+            Set<DeferredResult<Result>> set = waiters.get(orderId);
+            if (set != null && set.remove(result)) {
+                waiting.decrementAndGet();
+                if (set.isEmpty()) {
+                    waiters.remove(orderId, set);
+                }
+            }
+        });
+        // 3.登记之前状态可能已经变化并错过了广播，再查询一次
+        state = query(orderId);
+        if (!QUEUED.equals(state)) {
+            result.setResult(Result.ok(view(orderId, state)));
+        }
+        return result;
+    }
+
+    private void wakeUp(Long orderId, String state) {
+        Set<DeferredResult<Result>> set = waiters.get(orderId);
+        if (set == null) {
+            return;
+        }
+        for (DeferredResult<Result> result : set) {
+            if (result.setResult(Result.ok(view(orderId, state)))) {
+                notified.increment();
+            }
+        }
+    }
+
+    private static Map<String, Object> view(long orderId, String state) {
+        Map<String, Object> view = new LinkedHashMap<>(2);
+        view.put("orderId", orderId);
+        if (QUEUED.equals(state)) {
+            view.put("status", "queued");
+        } else if (PERSISTED.equals(state)) {
+            view.put("status", "persisted");
+        } else if (FAILED.equals(state)) {
+            view.put("status", "failed");
+        } else {
+            view.put("status", "unknown");
+        }
+        return view;
+    }
+
+    /**
+     * 状态查询和长轮询的情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queries", queries.sum());
+        stats.put("longPolls", longPolls.sum());
+        stats.put("waiting", waiting.get());
+        stats.put("notified", notified.sum());
+        stats.put("timeouts", timeouts.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 秒杀接口限流，超过限制时直接返回429，并通过 Retry-After 提示客户端多久后重试
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    // 这个类是自己new的，由MvcConfig注入限流器后通过构造方法传入
+    private final SeckillRateLimiter rateLimiter;
+
+    public RateLimitInterceptor(SeckillRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1.获取优惠券id和用户
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        UserDTO user = UserHolder.getUser();
+        if (variables == null || variables.get("id") == null || user == null) {
+            return true;
+        }
+        String id = variables.get("id");
+        if (!NumberUtil.isLong(id)) {
+            // 优惠券id不合法，返回400
+            response.setStatus(400);
+            return false;
+        }
+        //2.限流
+        long wait = rateLimiter.tryAcquire(Long.valueOf(id), user.getId());
+        if (wait == 0) {
+            return true;
+        }
+        //3.超过限制，返回429
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试")).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+}
@@ -6,6 +6,9 @@ public class RedisConstants {
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
 
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
@@ -13,10 +16,33 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_TYPE = "cache:shopType:";
 
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
+    public static final Long CACHE_VOUCHER_SHOP_TTL = 1L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_INVALIDATE_RETRY_KEY = "cache:invalidate:retry";
+    public static final String CACHE_INVALIDATE_RETRY_GROUP = "g-invalidate";
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_ADD_CHANNEL = "bloom:add";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_STOCK_META_KEY = "seckill:stock:meta:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String RATE_LIMIT_KEY = "rate:seckill:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_SOLD_OUT_GEN_KEY = "seckill:soldout:gen:";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_ARCHIVED_KEY = "stream.archived:";
+    public static final String STREAM_ORDERS_ARCHIVE_LOCK = "lock:stream.archive";
+    public static final String STREAM_ORDERS_ARCHIVE_OWNER = "stream.archive.owner";
+    public static final String SECKILL_RECONCILE_LOCK = "lock:seckill.reconcile";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 上一次重建缓存的耗时(毫秒)，用于提前刷新模式
+     */
+    private Long delta;
 }
@@ -1,12 +1,29 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -18,25 +35,281 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 号段模式：每次用 INCRBY 从Redis申请一段序列号，在本地用原子计数器分配，用到一定比例时在后台预取下一段
+     */
+    private final boolean segmentEnabled;
+    private final int segmentSize;
+    private final int prefetchAt;
+
+    /**
+     * 当天的日期，避免每次生成id都创建 LocalDateTime 和格式化日期
+     */
+    private volatile Day today;
+
+    private final Map<String, Segments> segments = new ConcurrentHashMap<>();
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder syncRefills = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder prefetchFailures = new LongAdder();
+    private final LatencyHistogram refillLatency = new LatencyHistogram();
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment.enabled:false}") boolean segmentEnabled,
+                         @Value("${hmdp.id.segment.size:1000}") int segmentSize,
+                         @Value("${hmdp.id.segment.prefetch-ratio:0.2}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentEnabled = segmentEnabled;
+        this.segmentSize = segmentSize;
+        // 剩余不足 prefetchRatio 时开始预取
+        this.prefetchAt = (int) Math.max(0, Math.min(segmentSize - 1, segmentSize * (1 - prefetchRatio)));
     }
 
     public long nextId(String keyPrefix) {
         // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp();
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" +  keyPrefix + ":" + date);
+        String key = sequenceKey(keyPrefix, timestamp);
+        // 2.2.自增长，号段模式下从本地号段中分配
+        long count = segmentEnabled
+                ? segments.computeIfAbsent(key, Segments::new).next()
+                : stringRedisTemplate.opsForValue().increment(key);
+        issued.increment();
 
         // 3.拼接并返回
+        return compose(timestamp, count);
+    }
+
+    /**
+     * id中的时间戳部分
+     */
+    public long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 当前时间对应的id时间戳部分，与 timestamp(LocalDateTime.now()) 相同，但不创建对象
+     */
+    public long timestamp() {
+        long epochSecond = System.currentTimeMillis() / 1000;
+        Day day = today;
+        if (day == null || !day.isCurrent(epochSecond)) {
+            Day previous = day;
+            day = new Day(epochSecond);
+            today = day;
+            // 换天后序列号key也换了，丢弃前一天的号段；夏令时切换只更新时区偏移
+            if (previous == null || !previous.date.equals(day.date)) {
+                segments.clear();
+            }
+        }
+        return epochSecond + day.offsetSeconds - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号的自增key，按天区分
+     */
+    public String sequenceKey(String keyPrefix, LocalDateTime now) {
+        return "icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER);
+    }
+
+    /**
+     * 时间戳所在那一天的序列号自增key，当天的key会被缓存
+     */
+    public String sequenceKey(String keyPrefix, long timestamp) {
+        long localSecond = timestamp + BEGIN_TIMESTAMP;
+        Day day = today;
+        if (day != null && day.contains(localSecond)) {
+            return day.keys.computeIfAbsent(keyPrefix, prefix -> "icr:" + prefix + ":" + day.date);
+        }
+        return "icr:" + keyPrefix + ":" + LocalDate.ofEpochDay(Math.floorDiv(localSecond, 86400L)).format(DATE_FORMATTER);
+    }
+
+    /**
+     * 由时间戳和序列号拼接id，序列号在其它地方(例如Lua脚本中)生成时使用
+     */
+    public static long compose(long timestamp, long count) {
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 从id中取出时间戳部分
+     */
+    public static long timestampOf(long id) {
+        return id >>> COUNT_BITS;
+    }
+
+    /**
+     * 从id中取出序列号部分
+     */
+    public static long sequenceOf(long id) {
+        return id & ((1L << COUNT_BITS) - 1);
+    }
+
+    /**
+     * 号段的申请情况，同步申请说明预取没有跟上，调用线程需要等待一次网络往返
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("segmentEnabled", segmentEnabled);
+        stats.put("segmentSize", segmentSize);
+        stats.put("issued", issued.sum());
+        stats.put("syncRefills", syncRefills.sum());
+        stats.put("prefetches", prefetches.sum());
+        stats.put("prefetchFailures", prefetchFailures.sum());
+        stats.put("refillLatency", refillLatency.stats());
+        stats.put("activeKeys", segments.keySet());
+        return stats;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetcher.shutdownNow();
+    }
+
+    /**
+     * 一段序列号 [start, end]
+     */
+    private static class Segment {
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+
+        private Segment(long end, int size, int prefetchAt) {
+            this.cursor = new AtomicLong(end - size + 1);
+            this.end = end;
+            this.prefetchAt = end - size + 1 + prefetchAt;
+        }
+    }
+
+    /**
+     * 一个自增key的当前号段和预取的下一个号段
+     */
+    private class Segments {
+        private final String key;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        private Segments(String key) {
+            this.key = key;
+        }
+
+        private long next() {
+            while (true) {
+                Segment segment = current;
+                if (segment != null) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.end) {
+                        // 用到预取位置时，后台申请下一段
+                        if (count == segment.prefetchAt) {
+                            prefetch();
+                        }
+                        return count;
+                    }
+                }
+                // 当前号段已用完，切换到预取的号段，没有则同步申请
+                synchronized (this) {
+                    if (current == segment) {
+                        Segment prefetched = next;
+                        if (prefetched != null) {
+                            next = null;
+                            current = prefetched;
+                        } else {
+                            long begin = System.nanoTime();
+                            current = fetch();
+                            refillLatency.record(System.nanoTime() - begin);
+                            syncRefills.increment();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void prefetch() {
+            if (next != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetcher.execute(() -> {
+                    try {
+                        long begin = System.nanoTime();
+                        Segment segment = fetch();
+                        refillLatency.record(System.nanoTime() - begin);
+                        next = segment;
+                        prefetches.increment();
+                    } catch (Exception e) {
+                        // 预取失败，用完当前号段时同步申请
+                        prefetchFailures.increment();
+                        log.warn("预取号段失败: {}", key, e);
+                    } finally {
+                        prefetching.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                prefetching.set(false);
+            }
+        }
+
+        /**
+         * INCRBY 申请一段序列号
+         */
+        private Segment fetch() {
+            Long end = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+            return new Segment(end, segmentSize, prefetchAt);
+        }
+    }
+
+    /**
+     * 本地时间的一天，时区偏移在夏令时切换时会变化，到下一次切换为止有效
+     */
+    private static class Day {
+        private final long offsetSeconds;
+        private final long start;
+        private final long end;
+        private final long offsetFrom;
+        private final long offsetUntil;
+        private final String date;
+        private final Map<String, String> keys = new ConcurrentHashMap<>();
+
+        private Day(long epochSecond) {
+            ZoneRules rules = ZoneId.systemDefault().getRules();
+            Instant instant = Instant.ofEpochSecond(epochSecond);
+            this.offsetSeconds = rules.getOffset(instant).getTotalSeconds();
+            // 当前偏移生效的区间，固定偏移的时区没有切换
+            ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            this.offsetFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond();
+            this.offsetUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond();
+            long epochDay = Math.floorDiv(epochSecond + offsetSeconds, 86400L);
+            this.start = epochDay * 86400L;
+            this.end = start + 86400L;
+            this.date = LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+        }
+
+        /**
+         * 该时刻是否仍在这一天内，且时区偏移没有变化
+         */
+        private boolean isCurrent(long epochSecond) {
+            return epochSecond >= offsetFrom && epochSecond < offsetUntil && contains(epochSecond + offsetSeconds);
+        }
+
+        /**
+         * 本地时间的秒数是否在这一天内
+         */
+        private boolean contains(long localSecond) {
+            return localSecond >= start && localSecond < end;
+        }
+    }
 }
@@ -0,0 +1,265 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.SecureUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lua脚本注册表
+ * <p>
+ * 启动时把 classpath 下的脚本 SCRIPT LOAD 到Redis，之后只用 EVALSHA 调用，不再发送脚本内容。
+ * Redis重启或主从切换后脚本缓存会丢失：定时用 SCRIPT EXISTS 检查，发现缺失时重新加载；
+ * 两次检查之间的调用遇到 NOSCRIPT 错误时，重新加载后重试一次
+ */
+@Slf4j
+@Component
+public class ScriptRegistry {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 脚本名称，对应 classpath 下的 {名称}.lua
+     */
+    private final List<String> names;
+    private final long checkIntervalMillis;
+
+    private final Map<String, Script> scripts = new LinkedHashMap<>();
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder noScriptErrors = new LongAdder();
+
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor();
+
+    public ScriptRegistry(StringRedisTemplate stringRedisTemplate,
+                          @Value("${hmdp.script.names:seckill,ratelimit,reconcile,initstock}") String[] names,
+                          @Value("${hmdp.script.check-interval-millis:5000}") long checkIntervalMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.names = Arrays.asList(names);
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        // 1.读取脚本并计算SHA1
+        for (String name : names) {
+            try (InputStream in = new ClassPathResource(name + ".lua").getInputStream()) {
+                String source = IoUtil.read(in, StandardCharsets.UTF_8);
+                scripts.put(name, new Script(source, SecureUtil.sha1(source)));
+            }
+        }
+        // 2.加载到Redis，Redis暂时不可用时由定时检查或 NOSCRIPT 重试加载
+        try {
+            loadAll();
+        } catch (Exception e) {
+            log.warn("加载Lua脚本失败，稍后重试", e);
+        }
+        checker.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        checker.shutdownNow();
+    }
+
+    /**
+     * SCRIPT LOAD 所有脚本，一次往返
+     */
+    public void loadAll() {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Script script : scripts.values()) {
+                connection.scriptingCommands().scriptLoad(script.source.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        loads.increment();
+        log.debug("已加载Lua脚本: {}", scripts.keySet());
+    }
+
+    /**
+     * 检查脚本是否仍在Redis的脚本缓存中，缺失说明Redis重启或发生了切换
+     */
+    private void check() {
+        try {
+            String[] shas = scripts.values().stream().map(script -> script.sha).toArray(String[]::new);
+            List<Boolean> exists = stringRedisTemplate.execute(
+                    (RedisCallback<List<Boolean>>) connection -> connection.scriptingCommands().scriptExists(shas));
+            if (exists != null && exists.contains(Boolean.FALSE)) {
+                log.info("Redis中的Lua脚本缺失，重新加载");
+                loadAll();
+            }
+        } catch (Exception e) {
+            log.warn("检查Lua脚本失败", e);
+        }
+    }
+
+    /**
+     * EVALSHA 执行脚本
+     * @param returnType 脚本返回值的类型，INTEGER 返回 Long，MULTI 返回 List
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String name, ReturnType returnType, List<String> keys, String... args) {
+        Script script = script(name);
+        long begin = System.nanoTime();
+        try {
+            return (T) stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    evalSha(connection, script, returnType, keys, args));
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            // 脚本缓存已丢失，重新加载后重试
+            noScriptErrors.increment();
+            loadAll();
+            return (T) stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    evalSha(connection, script, returnType, keys, args));
+        } finally {
+            script.latency.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 在一次往返中批量执行同一个脚本
+     * @return 每次调用的结果，顺序与 calls 一致
+     */
+    public List<Object> executePipelined(String name, ReturnType returnType, List<ScriptCall> calls) {
+        Script script = script(name);
+        long begin = System.nanoTime();
+        try {
+            return pipeline(script, returnType, calls);
+        } catch (RedisPipelineException e) {
+            // 1.只重试因 NOSCRIPT 失败的调用，成功的调用不能重复执行
+            List<Object> results = new ArrayList<>(e.getPipelineResult());
+            List<Integer> retry = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                Object result = results.get(i);
+                if (result instanceof Exception) {
+                    if (!isNoScript((Exception) result)) {
+                        throw e;
+                    }
+                    retry.add(i);
+                }
+            }
+            noScriptErrors.add(retry.size());
+            loadAll();
+            // 2.重试并填回对应的位置
+            List<ScriptCall> retryCalls = new ArrayList<>(retry.size());
+            retry.forEach(i -> retryCalls.add(calls.get(i)));
+            List<Object> retried = pipeline(script, returnType, retryCalls);
+            for (int i = 0; i < retry.size(); i++) {
+                results.set(retry.get(i), retried.get(i));
+            }
+            return results;
+        } finally {
+            script.batchLatency.record(System.nanoTime() - begin);
+            script.batchCalls.add(calls.size());
+        }
+    }
+
+    private List<Object> pipeline(Script script, ReturnType returnType, List<ScriptCall> calls) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ScriptCall call : calls) {
+                evalSha(connection, script, returnType, call.keys, call.args);
+            }
+            return null;
+        });
+    }
+
+    private Object evalSha(RedisConnection connection, Script script, ReturnType returnType, List<String> keys, String[] args) {
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return connection.scriptingCommands().evalSha(script.sha, returnType, keys.size(), keysAndArgs);
+    }
+
+    private Script script(String name) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("未注册的Lua脚本: " + name);
+        }
+        return script;
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 各脚本的调用耗时分布和重新加载的次数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("loads", loads.sum());
+        stats.put("noScriptErrors", noScriptErrors.sum());
+        scripts.forEach((name, script) -> {
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("sha", script.sha);
+            s.put("latency", script.latency.stats());
+            s.put("pipelinedCalls", script.batchCalls.sum());
+            s.put("pipelineLatency", script.batchLatency.stats());
+            stats.put(name, s);
+        });
+        return stats;
+    }
+
+    /**
+     * 批量执行中的一次调用
+     */
+    public static class ScriptCall {
+        private final List<String> keys;
+        private final String[] args;
+
+        private ScriptCall(List<String> keys, String[] args) {
+            this.keys = keys;
+            this.args = args;
+        }
+
+        public static ScriptCall of(List<String> keys, String... args) {
+            return new ScriptCall(keys, args);
+        }
+    }
+
+    private static class Script {
+        private final String source;
+        private final String sha;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram batchLatency = new LatencyHistogram();
+        private final LongAdder batchCalls = new LongAdder();
+
+        private Script(String source, String sha) {
+            this.source = source;
+            this.sha = sha;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 秒杀接口的限流
+ * <p>
+ * 先按用户、按优惠券检查本地令牌桶，每个节点独立限流，不访问Redis；
+ * 开启分布式限流后，再用Lua脚本在Redis中按滑动窗口检查整个集群的请求数
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private final ScriptRegistry scriptRegistry;
+
+    @Value("${hmdp.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.rate-limit.user.permits-per-second:2}")
+    private double userPermitsPerSecond;
+
+    @Value("${hmdp.rate-limit.user.burst:5}")
+    private double userBurst;
+
+    @Value("${hmdp.rate-limit.voucher.permits-per-second:2000}")
+    private double voucherPermitsPerSecond;
+
+    @Value("${hmdp.rate-limit.voucher.burst:4000}")
+    private double voucherBurst;
+
+    /**
+     * 单独设置的优惠券限流速率，格式为 券id=每秒请求数，多个用逗号分隔
+     */
+    @Value("${hmdp.rate-limit.voucher.overrides:}")
+    private String voucherOverrides;
+
+    @Value("${hmdp.rate-limit.distributed.enabled:false}")
+    private boolean distributedEnabled;
+
+    @Value("${hmdp.rate-limit.distributed.window-millis:1000}")
+    private long windowMillis;
+
+    @Value("${hmdp.rate-limit.distributed.user-limit:5}")
+    private long userLimit;
+
+    @Value("${hmdp.rate-limit.distributed.voucher-limit:10000}")
+    private long voucherLimit;
+
+    /**
+     * 用户的令牌桶只保留最近活跃的，避免大量用户撑满内存
+     */
+    private final LRUCache<Long, TokenBucket> userBuckets = CacheUtil.newLRUCache(100_000, 60_000);
+    /**
+     * 券id由客户端传入，同样只保留最近访问的，不存在的券不会一直占用内存
+     */
+    private final LRUCache<Long, TokenBucket> voucherBuckets = CacheUtil.newLRUCache(10_000, 60_000);
+    private final Map<Long, Double> overrides = new HashMap<>();
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejectedUser = new LongAdder();
+    private final LongAdder rejectedVoucher = new LongAdder();
+    private final LongAdder rejectedDistributed = new LongAdder();
+
+    public SeckillRateLimiter(ScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    /**
+     * 解析单独设置的优惠券限流速率
+     */
+    @PostConstruct
+    private void init() {
+        List<String> items = StrUtil.splitTrim(voucherOverrides, ',');
+        for (String item : items) {
+            List<String> pair = StrUtil.splitTrim(item, '=');
+            overrides.put(Long.valueOf(pair.get(0)), Double.valueOf(pair.get(1)));
+        }
+    }
+
+    /**
+     * 尝试通过限流
+     * @return 0 表示通过，否则为建议的重试等待毫秒数
+     */
+    public long tryAcquire(Long voucherId, Long userId) {
+        if (!enabled) {
+            return 0;
+        }
+        // 1.本地按用户限流
+        TokenBucket userBucket = userBuckets.get(userId, () -> new TokenBucket(userPermitsPerSecond, userBurst));
+        long wait = userBucket.tryAcquire();
+        if (wait > 0) {
+            rejectedUser.increment();
+            return wait;
+        }
+        // 2.本地按优惠券限流，被拒绝时归还用户的令牌，不占用用户自己的配额
+        TokenBucket voucherBucket = voucherBuckets.get(voucherId, () -> newVoucherBucket(voucherId));
+        wait = voucherBucket.tryAcquire();
+        if (wait > 0) {
+            userBucket.refund();
+            rejectedVoucher.increment();
+            return wait;
+        }
+        // 3.集群范围按滑动窗口限流，用户和优惠券在一次脚本调用中检查，被拒绝时归还本地的两个令牌
+        if (distributedEnabled) {
+            Long result = scriptRegistry.execute("ratelimit", ReturnType.INTEGER,
+                    Arrays.asList(RATE_LIMIT_KEY + "user:" + userId, RATE_LIMIT_KEY + "voucher:" + voucherId),
+                    String.valueOf(userLimit), String.valueOf(voucherLimit), String.valueOf(windowMillis));
+            if (result != null && result > 0) {
+                userBucket.refund();
+                voucherBucket.refund();
+                rejectedDistributed.increment();
+                return result;
+            }
+        }
+        allowed.increment();
+        return 0;
+    }
+
+    private TokenBucket newVoucherBucket(Long voucherId) {
+        double permits = overrides.getOrDefault(voucherId, voucherPermitsPerSecond);
+        // 单独设置了速率的券，按原有的突发/速率比例设置桶容量
+        return new TokenBucket(permits, permits * voucherBurst / voucherPermitsPerSecond);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("distributedEnabled", distributedEnabled);
+        stats.put("allowed", allowed.sum());
+        stats.put("rejectedUser", rejectedUser.sum());
+        stats.put("rejectedVoucher", rejectedVoucher.sum());
+        stats.put("rejectedDistributed", rejectedDistributed.sum());
+        return stats;
+    }
+}
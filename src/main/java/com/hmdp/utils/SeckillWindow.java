@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀券的开始、结束时间
+ * <p>
+ * 时间保存在Redis的 seckill:voucher:{id} 中，由 seckill.lua 原子地检查；
+ * 本地缓存一份用于提前拦截开始前、结束后的请求，不必访问Redis。
+ * 本地时钟与Redis时钟可能有偏差，本地只拦截明显在时间窗口之外的请求，边界附近以脚本的判断为准
+ */
+@Component
+public class SeckillWindow {
+
+    public static final int OPEN = 0;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long cacheMillis;
+    private final long clockSkewMillis;
+
+    /**
+     * 券id由客户端传入，不存在的券也会缓存一个不限时间的窗口，只保留最近访问的，避免撑满内存
+     */
+    private final LRUCache<Long, Window> windows;
+
+    private final LongAdder rejectedNotStarted = new LongAdder();
+    private final LongAdder rejectedEnded = new LongAdder();
+
+    public SeckillWindow(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.seckill.window.cache-millis:10000}") long cacheMillis,
+                         @Value("${hmdp.seckill.window.clock-skew-millis:200}") long clockSkewMillis,
+                         @Value("${hmdp.seckill.window.max-cached:10000}") int maxCached) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheMillis = cacheMillis;
+        this.clockSkewMillis = clockSkewMillis;
+        this.windows = CacheUtil.newLRUCache(maxCached);
+    }
+
+    /**
+     * 本地预检
+     * @return OPEN、NOT_STARTED 或 ENDED，没有设置时间窗口的券返回 OPEN
+     */
+    public int check(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Window window = windows.get(voucherId);
+        if (window == null || window.loadedAt + cacheMillis <= now) {
+            window = load(voucherId, now);
+        }
+        if (now + clockSkewMillis < window.begin) {
+            rejectedNotStarted.increment();
+            return NOT_STARTED;
+        }
+        if (now - clockSkewMillis >= window.end) {
+            rejectedEnded.increment();
+            return ENDED;
+        }
+        return OPEN;
+    }
+
+    private Window load(Long voucherId, long now) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("begin", "end"));
+        long begin = values.get(0) == null ? Long.MIN_VALUE : Long.parseLong(values.get(0).toString());
+        long end = values.get(1) == null ? Long.MAX_VALUE : Long.parseLong(values.get(1).toString());
+        Window window = new Window(begin, end, now);
+        windows.put(voucherId, window);
+        return window;
+    }
+
+    /**
+     * 写入Redis，并清除本地缓存
+     */
+    public void write(Long voucherId, LocalDateTime begin, LocalDateTime end) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toMillis(begin)));
+        window.put("end", String.valueOf(toMillis(end)));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, window);
+        windows.remove(voucherId);
+    }
+
+    public void remove(Long voucherId) {
+        stringRedisTemplate.delete(SECKILL_VOUCHER_KEY + voucherId);
+        windows.remove(voucherId);
+    }
+
+    public static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 本地预检拦截的请求数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cachedWindows", windows.size());
+        stats.put("rejectedNotStarted", rejectedNotStarted.sum());
+        stats.put("rejectedEnded", rejectedEnded.sum());
+        return stats;
+    }
+
+    private static class Window {
+        private final long begin;
+        private final long end;
+        private final long loadedAt;
+
+        private Window(long begin, long end, long loadedAt) {
+            this.begin = begin;
+            this.end = end;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
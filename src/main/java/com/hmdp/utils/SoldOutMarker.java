@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_GEN_KEY;
+
+/**
+ * 秒杀券的本地售罄标记
+ * <p>
+ * 脚本返回库存不足后标记售罄并广播给所有节点，之后的请求不再执行脚本，直接返回。
+ * 补充库存时清除标记；标记带有过期时间，即使错过了清除消息，过期后也会重新以Redis中的库存为准
+ * <p>
+ * 每次补充库存都会递增该券的代数，售罄标记携带执行脚本前读到的代数，补充库存之前的脚本结果不会再标记售罄
+ */
+@Slf4j
+@Component
+public class SoldOutMarker {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long ttlMillis;
+
+    /**
+     * 售罄的券及标记的过期时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    /**
+     * 已知的每张券补充库存的代数
+     */
+    private final Map<Long, Long> generations = new ConcurrentHashMap<>();
+
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder marked = new LongAdder();
+    private final LongAdder reset = new LongAdder();
+
+    public SoldOutMarker(StringRedisTemplate stringRedisTemplate,
+                         RedisMessageListenerContainer listenerContainer,
+                         @Value("${hmdp.seckill.sold-out-ttl-millis:60000}") long ttlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlMillis = ttlMillis;
+        // 消息格式: +券id:代数 表示售罄，-券id:代数 表示补充了库存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int sep = body.indexOf(':');
+            Long voucherId = Long.valueOf(body.substring(1, sep));
+            long generation = Long.parseLong(body.substring(sep + 1));
+            if (body.charAt(0) == '+') {
+                // 已知更新的代数，说明是补充库存之前的售罄消息
+                if (generation >= generation(voucherId)) {
+                    mark(voucherId, generation);
+                }
+            } else {
+                clear(voucherId, generation);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断是否已售罄，命中时计入节省的请求数
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt <= System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        saved.increment();
+        return true;
+    }
+
+    /**
+     * 当前已知的补充库存代数，需要在执行秒杀脚本之前读取
+     */
+    public long generation(Long voucherId) {
+        return generations.getOrDefault(voucherId, 0L);
+    }
+
+    /**
+     * 标记售罄，首次标记时通知其它节点
+     *
+     * @param generation 执行脚本之前读到的代数，之后补充过库存时忽略本次标记
+     */
+    public void markSoldOut(Long voucherId, long generation) {
+        if (generation != generation(voucherId) || !mark(voucherId, generation)) {
+            return;
+        }
+        marked.increment();
+        log.info("优惠券{}已售罄", voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId + ":" + generation);
+    }
+
+    /**
+     * 补充库存后递增代数，清除所有节点的售罄标记
+     */
+    public void reset(Long voucherId) {
+        Long generation = stringRedisTemplate.opsForValue().increment(SECKILL_SOLD_OUT_GEN_KEY + voucherId);
+        clear(voucherId, generation);
+        reset.increment();
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId + ":" + generation);
+    }
+
+    /**
+     * 写入售罄标记，返回是否为新的标记
+     * <p>
+     * 写入后再检查一次代数，与并发的 clear 交错时撤销本次写入
+     */
+    private boolean mark(Long voucherId, long generation) {
+        Long expireAt = System.currentTimeMillis() + ttlMillis;
+        if (soldOut.put(voucherId, expireAt) != null) {
+            return false;
+        }
+        if (generation < generation(voucherId)) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 先更新代数再清除标记，保证 mark 写入后的检查能看到新的代数
+     */
+    private void clear(Long voucherId, long generation) {
+        generations.merge(voucherId, generation, Math::max);
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 售罄标记的命中情况，每次命中省去一次秒杀脚本调用（订单序列号已在脚本中生成）
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("soldOut", soldOut.keySet());
+        stats.put("savedRequests", saved.sum());
+        stats.put("savedRedisCalls", saved.sum());
+        stats.put("marked", marked.sum());
+        stats.put("reset", reset.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 把消息按id分散到多个stream，同一个id总是落在同一个stream中，保证同一id的消息有序
+ * <p>
+ * 只有一个分区时直接使用原始key，兼容未分区时写入的数据。
+ * 分区分散的是单个Redis内的热点stream；秒杀脚本在同一次调用中访问多个不同槽位的key，不支持Redis Cluster
+ */
+public class StreamPartitioner {
+
+    private final List<String> keys;
+
+    public StreamPartitioner(String baseKey, int partitions) {
+        if (partitions <= 1) {
+            this.keys = Collections.singletonList(baseKey);
+            return;
+        }
+        List<String> keys = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            keys.add(baseKey + ":" + i);
+        }
+        this.keys = Collections.unmodifiableList(keys);
+    }
+
+    public String keyOf(long id) {
+        return keys.get(Math.floorMod(Long.hashCode(id), keys.size()));
+    }
+
+    public List<String> keys() {
+        return keys;
+    }
+}
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+/**
+ * 令牌桶，按固定速率补充令牌，最多积攒 burst 个
+ */
+public class TokenBucket {
+
+    private final double permitsPerMillis;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double permitsPerSecond, double burst) {
+        this.permitsPerMillis = permitsPerSecond / 1000;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @return 0 表示获取成功，否则为下一个令牌就绪还需等待的毫秒数
+     */
+    public synchronized long tryAcquire() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerMillis);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / permitsPerMillis));
+    }
+
+    /**
+     * 归还一个令牌，后续的限流拒绝了请求时使用
+     */
+    public synchronized void refund() {
+        tokens = Math.min(burst, tokens + 1);
+    }
+}
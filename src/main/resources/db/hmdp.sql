@@ -65,6 +65,20 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键，即变更的顺序',
+  `table_name` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '变更的表',
+  `row_id` bigint(20) UNSIGNED NOT NULL COMMENT '变更行的主键',
+  `op` char(1) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '变更类型 I：新增；U：修改；D：删除',
+  `shop_id` bigint(20) UNSIGNED NULL DEFAULT NULL COMMENT '优惠券所属的店铺id',
+  `create_time` timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) COMMENT '变更时间',
+  PRIMARY KEY (`id`) USING BTREE
+) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '缓存变更发件箱，由触发器写入' ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -1274,11 +1288,85 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`) USING BTREE COMMENT '一人一单'
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
 
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tr_shop_insert`;
+delimiter ;;
+CREATE TRIGGER `tr_shop_insert` AFTER INSERT ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop', NEW.id, 'I')
+;;
+delimiter ;
+
+DROP TRIGGER IF EXISTS `tr_shop_update`;
+delimiter ;;
+CREATE TRIGGER `tr_shop_update` AFTER UPDATE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop', NEW.id, 'U')
+;;
+delimiter ;
+
+DROP TRIGGER IF EXISTS `tr_shop_delete`;
+delimiter ;;
+CREATE TRIGGER `tr_shop_delete` AFTER DELETE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`) VALUES ('tb_shop', OLD.id, 'D')
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_voucher
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tr_voucher_insert`;
+delimiter ;;
+CREATE TRIGGER `tr_voucher_insert` AFTER INSERT ON `tb_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', NEW.id, 'I', NEW.shop_id)
+;;
+delimiter ;
+
+DROP TRIGGER IF EXISTS `tr_voucher_update`;
+delimiter ;;
+CREATE TRIGGER `tr_voucher_update` AFTER UPDATE ON `tb_voucher` FOR EACH ROW BEGIN
+  INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', NEW.id, 'U', NEW.shop_id);
+  IF OLD.shop_id <> NEW.shop_id THEN
+    INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', OLD.id, 'U', OLD.shop_id);
+  END IF;
+END
+;;
+delimiter ;
+
+DROP TRIGGER IF EXISTS `tr_voucher_delete`;
+delimiter ;;
+CREATE TRIGGER `tr_voucher_delete` AFTER DELETE ON `tb_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', OLD.id, 'D', OLD.shop_id)
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_seckill_voucher
+-- 下单扣减库存不记录变更，否则秒杀期间每一单都会使优惠券列表缓存失效；列表缓存中不保存库存，查询时从Redis读取实时库存填充
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tr_seckill_voucher_insert`;
+delimiter ;;
+CREATE TRIGGER `tr_seckill_voucher_insert` AFTER INSERT ON `tb_seckill_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_seckill_voucher', NEW.voucher_id, 'I', (SELECT `shop_id` FROM `tb_voucher` WHERE `id` = NEW.voucher_id))
+;;
+delimiter ;
+
+DROP TRIGGER IF EXISTS `tr_seckill_voucher_update`;
+delimiter ;;
+CREATE TRIGGER `tr_seckill_voucher_update` AFTER UPDATE ON `tb_seckill_voucher` FOR EACH ROW BEGIN
+  IF NOT (OLD.begin_time <=> NEW.begin_time AND OLD.end_time <=> NEW.end_time AND NEW.stock <= OLD.stock) THEN
+    INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_seckill_voucher', NEW.voucher_id, 'U', (SELECT `shop_id` FROM `tb_voucher` WHERE `id` = NEW.voucher_id));
+  END IF;
+END
+;;
+delimiter ;
+
+DROP TRIGGER IF EXISTS `tr_seckill_voucher_delete`;
+delimiter ;;
+CREATE TRIGGER `tr_seckill_voucher_delete` AFTER DELETE ON `tb_seckill_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_seckill_voucher', OLD.voucher_id, 'D', (SELECT `shop_id` FROM `tb_voucher` WHERE `id` = OLD.voucher_id))
+;;
+delimiter ;
+
 SET FOREIGN_KEY_CHECKS = 1;
@@ -0,0 +1,53 @@
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.总库存
+local stock = tonumber(ARGV[2])
+-- 1.3.分片数，1表示不分片
+local shards = tonumber(ARGV[3])
+
+-- 2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local metaKey = 'seckill:stock:meta:' .. voucherId
+
+-- 3.删除旧的库存和下单用户集合，收集已下单的用户，分片数改变后旧分片的key不会再被使用
+local buyers = {}
+local oldShards = tonumber(redis.call('get', metaKey)) or 0
+local oldOrderKeys = {}
+if(oldShards == 0) then
+    oldOrderKeys[1] = orderKey
+    redis.call('del', stockKey)
+else
+    for i = 0, oldShards - 1 do
+        oldOrderKeys[i + 1] = orderKey .. ':' .. i
+        redis.call('del', stockKey .. ':' .. i)
+    end
+    redis.call('del', metaKey)
+end
+for _, key in ipairs(oldOrderKeys) do
+    for _, userId in ipairs(redis.call('smembers', key)) do
+        buyers[#buyers + 1] = userId
+    end
+    redis.call('del', key)
+end
+
+-- 4.写入新的库存，已下单的用户迁移到新的集合，保证一人一单
+if(shards <= 1) then
+    redis.call('set', stockKey, stock)
+    for i = 1, #buyers do
+        redis.call('sadd', orderKey, buyers[i])
+    end
+else
+    for i = 0, shards - 1 do
+        -- 余数分给前面的分片
+        local shardStock = math.floor(stock / shards) + ((i < stock % shards) and 1 or 0)
+        redis.call('set', stockKey .. ':' .. i, shardStock)
+    end
+    -- 与秒杀脚本一致，用户总是使用 userId % shards 的集合
+    for i = 1, #buyers do
+        redis.call('sadd', orderKey .. ':' .. (tonumber(buyers[i]) % shards), buyers[i])
+    end
+    redis.call('set', metaKey, shards)
+end
+return #buyers
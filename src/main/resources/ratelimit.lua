@@ -0,0 +1,27 @@
+-- 滑动窗口限流，用当前窗口和上一个窗口的计数按时间加权估算最近一个窗口内的请求数
+-- KEYS[i]: 限流的key，ARGV[i]: 对应key的上限，ARGV[#KEYS + 1]: 窗口长度(毫秒)
+-- 全部通过时返回0，否则返回需要等待的毫秒数
+
+-- 1.以Redis的时钟为准。脚本中读取了TIME，需要按命令而不是按脚本复制
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local window = tonumber(ARGV[#KEYS + 1])
+local index = math.floor(now / window)
+local elapsed = now - index * window
+
+-- 2.先检查所有key，任何一个超过上限都不计数
+for i = 1, #KEYS do
+    local current = tonumber(redis.call('get', KEYS[i] .. ':' .. index)) or 0
+    local previous = tonumber(redis.call('get', KEYS[i] .. ':' .. (index - 1))) or 0
+    if(previous * (window - elapsed) / window + current >= tonumber(ARGV[i])) then
+        return window - elapsed
+    end
+end
+-- 3.全部通过，计数
+for i = 1, #KEYS do
+    local key = KEYS[i] .. ':' .. index
+    redis.call('incr', key)
+    redis.call('pexpire', key, window * 2)
+end
+return 0
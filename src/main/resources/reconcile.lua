@@ -0,0 +1,61 @@
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.期望的总库存(剩余库存 + 已下单用户数)，不传时只统计不修复
+local expected = tonumber(ARGV[2])
+
+-- 2.数据key，分片模式下库存和订单集合都拆分为多个key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local shards = tonumber(redis.call('get', 'seckill:stock:meta:' .. voucherId)) or 0
+local stockKeys = {}
+local orderKeys = {}
+if(shards == 0) then
+    stockKeys[1] = stockKey
+    orderKeys[1] = orderKey
+else
+    for i = 0, shards - 1 do
+        stockKeys[i + 1] = stockKey .. ':' .. i
+        orderKeys[i + 1] = orderKey .. ':' .. i
+    end
+end
+
+-- 3.统计剩余库存和已下单用户数，与秒杀脚本互斥执行，两个值是同一时刻的
+local stock = 0
+local exists = 0
+for _, key in ipairs(stockKeys) do
+    local value = redis.call('get', key)
+    if(value) then
+        exists = 1
+        stock = stock + tonumber(value)
+    end
+end
+local orders = 0
+for _, key in ipairs(orderKeys) do
+    orders = orders + redis.call('scard', key)
+end
+if(expected == nil) then
+    return {stock, orders, shards, exists}
+end
+
+-- 4.调整剩余库存，使 剩余库存 + 已下单用户数 = 期望的总库存
+local delta = expected - orders - stock
+if(delta > 0) then
+    -- 4.1.补充的库存加到第一个分片，秒杀脚本会依次查找有库存的分片
+    redis.call('incrby', stockKeys[1], delta)
+else
+    -- 4.2.依次从各分片扣除，库存不足时不会扣成负数
+    local remaining = -delta
+    for _, key in ipairs(stockKeys) do
+        if(remaining == 0) then
+            break
+        end
+        local take = math.min(tonumber(redis.call('get', key)) or 0, remaining)
+        if(take > 0) then
+            redis.call('incrby', key, -take)
+            remaining = remaining - take
+        end
+    end
+    delta = delta + remaining
+end
+return {stock + delta, orders, shards, 1}
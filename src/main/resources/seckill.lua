@@ -1,32 +1,90 @@
+-- 秒杀脚本：检查时间窗口、库存和一人一单，扣减库存并把订单写入消息队列
+-- 库存、去重集合、分片数和时间窗口的key由ARGV中的券id在脚本内拼接，分片key还取决于读到的分片数，
+-- 没有全部通过KEYS声明，也不在同一个哈希槽中，所以只支持单节点(含主从、哨兵)的Redis，不支持Redis Cluster。
+-- 订单分区和库存分片分散的是单个Redis内的热点key，而不是集群的槽位
+
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1]
 -- 1.2.用户id
 local userId = ARGV[2]
--- 1.3.订单id
-local orderId = ARGV[3]
+-- 1.3.订单id的时间戳部分
+local timestamp = ARGV[3]
+-- 1.4.订单状态的过期时间(秒)
+local statusTtl = ARGV[4]
+-- 1.5.是否发送到消息队列，为0时由调用者写入本地队列
+local enqueue = ARGV[5] ~= '0'
 
 -- 2.数据key
 -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.订单消息队列，按voucherId选定的分区
+local streamKey = KEYS[1]
+-- 2.4.订单id的序列号key icr:order:yyyy:MM:dd
+local sequenceKey = KEYS[2]
+-- 2.5.订单状态key order:status:{timestamp}
+local statusKey = KEYS[3]
+-- 2.6.库存分片数，不存在说明未分片
+local shards = tonumber(redis.call('get', 'seckill:stock:meta:' .. voucherId)) or 0
+-- 2.7.秒杀的开始、结束时间(毫秒)，不存在说明不限制时间
+local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end')
 
 -- 3.脚本业务
+-- 3.0.判断是否在秒杀时间内，以Redis的时钟为准。脚本中读取了TIME，需要按命令而不是按脚本复制
+if(window[1] or window[2]) then
+    redis.replicate_commands()
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(window[1] and now < tonumber(window[1])) then
+        -- 尚未开始，返回3
+        return {3}
+    end
+    if(window[2] and now >= tonumber(window[2])) then
+        -- 已经结束，返回4
+        return {4}
+    end
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+if(shards > 0) then
+    -- 3.1.1.分片模式，从用户所在的分片开始，依次查找还有库存的分片
+    local start = tonumber(userId) % shards
+    local found = nil
+    for i = 0, shards - 1 do
+        local key = stockKey .. ':' .. ((start + i) % shards)
+        if((tonumber(redis.call('get', key)) or 0) > 0) then
+            found = key
+            break
+        end
+    end
+    if(found == nil) then
+        -- 3.2.所有分片都没有库存，返回1
+        return {1}
+    end
+    stockKey = found
+    -- 3.1.2.同一用户总是使用同一个去重集合
+    orderKey = orderKey .. ':' .. start
+elseif((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
     -- 3.2.库存不足，返回1
-    return 1
+    return {1}
 end
 -- 3.2.判断用户是否下单 SISMEMBER orderKey userId
 if(redis.call('sismember', orderKey, userId) == 1) then
     -- 3.3.存在，说明是重复下单，返回2
-    return 2
+    return {2}
 end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 3.6.抢购成功才生成订单id的序列号。Lua的数字是双精度浮点数，无法表示64位的订单id，由Java拼接
+local seq = redis.call('incr', sequenceKey)
+-- 3.7.发送消息到队列中， XADD stream.orders:n * k1 v1 k2 v2 ...
+if(enqueue) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'ts', timestamp, 'seq', seq)
+end
+-- 3.8.记录订单状态为排队中 hset statusKey seq q
+redis.call('hset', statusKey, seq, 'q')
+redis.call('expire', statusKey, statusTtl)
+return {0, seq}
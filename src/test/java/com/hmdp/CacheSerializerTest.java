@@ -0,0 +1,147 @@
+package com.hmdp;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheSerializer;
+import com.hmdp.utils.KryoCacheSerializer;
+import com.hmdp.utils.MigratingCacheSerializer;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 对比JSON与二进制两种缓存序列化方式的体积和编解码耗时
+ */
+class CacheSerializerTest {
+
+    private static final int ROUNDS = 20000;
+
+    private final CacheSerializer json = new JsonCacheSerializer();
+    private final CacheSerializer kryo = new KryoCacheSerializer();
+    private final CacheSerializer migrating = new MigratingCacheSerializer();
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop();
+        assertEquals(shop, kryo.deserialize(kryo.serialize(shop), Shop.class));
+        assertEquals(shop, json.deserialize(json.serialize(shop), Shop.class));
+        // 迁移模式能同时读取两种格式
+        assertEquals(shop, migrating.deserialize(json.serialize(shop), Shop.class));
+        assertEquals(shop, migrating.deserialize(kryo.serialize(shop), Shop.class));
+        // 店铺的优惠券列表
+        Voucher[] vouchers = {voucher(), voucher().setId(2L)};
+        assertArrayEquals(vouchers, kryo.deserialize(kryo.serialize(vouchers), Voucher[].class));
+        assertArrayEquals(vouchers, json.deserialize(json.serialize(vouchers), Voucher[].class));
+        // 逻辑过期的包装对象
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now());
+        RedisData decoded = migrating.deserialize(migrating.serialize(redisData), RedisData.class);
+        assertEquals(shop, migrating.convert(decoded.getData(), Shop.class));
+        decoded = migrating.deserialize(json.serialize(redisData), RedisData.class);
+        assertEquals(shop, migrating.convert(decoded.getData(), Shop.class));
+    }
+
+    @Test
+    void testLegacyFormat() {
+        // 版本1按字段顺序编码的RedisData，升级后仍能读取
+        Kryo legacy = new Kryo();
+        legacy.setRegistrationRequired(false);
+        legacy.setReferences(false);
+        legacy.register(RedisData.class, 100);
+        legacy.register(LocalDateTime.class, 101);
+        legacy.register(Shop.class, 110);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setDelta(12L);
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 1, 0, 0));
+        Output output = new Output(1024, -1);
+        output.writeByte(0xC5);
+        output.writeByte(0x01);
+        legacy.writeObject(output, redisData);
+        assertEquals(redisData, kryo.deserialize(output.toBytes(), RedisData.class));
+        // 新格式
+        assertEquals(redisData, kryo.deserialize(kryo.serialize(redisData), RedisData.class));
+    }
+
+    @Test
+    void testMalformed() {
+        // 无法解析的数据返回null，按未命中处理
+        byte[] garbage = "{not json".getBytes(StandardCharsets.UTF_8);
+        assertNull(json.deserialize(garbage, Shop.class));
+        assertNull(json.deserialize(garbage, Voucher[].class));
+        assertNull(migrating.deserialize(garbage, RedisData.class));
+        assertNull(kryo.deserialize(garbage, Shop.class));
+    }
+
+    @Test
+    void benchmark() {
+        bench("Shop", shop(), Shop.class);
+        bench("Voucher", voucher(), Voucher.class);
+    }
+
+    private <T> void bench(String name, T value, Class<T> type) {
+        for (CacheSerializer serializer : new CacheSerializer[]{json, kryo}) {
+            byte[] bytes = serializer.serialize(value);
+            // 预热
+            for (int i = 0; i < ROUNDS; i++) {
+                serializer.deserialize(serializer.serialize(value), type);
+            }
+            long begin = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                serializer.serialize(value);
+            }
+            long encode = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                serializer.deserialize(bytes, type);
+            }
+            long decode = System.nanoTime() - begin;
+            System.out.printf("%-8s %-22s size=%4d bytes, encode=%5d ns/op, decode=%5d ns/op%n",
+                    name, serializer.getClass().getSimpleName(), bytes.length, encode / ROUNDS, decode / ROUNDS);
+        }
+    }
+
+    private Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private Voucher voucher() {
+        return new Voucher()
+                .setId(1L)
+                .setShopId(1L)
+                .setTitle("50元代金券")
+                .setSubTitle("周一至周日均可使用")
+                .setRules("全场通用\\n无需预约\\n可无限叠加\\不兑现、不找零\\n仅限堂食")
+                .setPayValue(4750L)
+                .setActualValue(5000L)
+                .setType(0)
+                .setStatus(1)
+                .setCreateTime(LocalDateTime.of(2022, 1, 4, 9, 42, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 4, 9, 43, 31));
+    }
+}
@@ -10,12 +10,15 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -53,6 +56,29 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        RedisIdWorker segmentIdWorker = new RedisIdWorker(stringRedisTemplate, true, 1000, 0.2);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(300);
+
+        Runnable task = () -> {
+            for (int i = 0; i < 100; i++) {
+                ids.add(segmentIdWorker.nextId("order"));
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("time = " + (end - begin) + ", " + segmentIdWorker.stats());
+        // 号段之间、线程之间都不会重复
+        assertEquals(300 * 100, ids.size());
+    }
+
     @Test
     void testSaveShop() throws InterruptedException {
         Shop shop = shopService.getById(1L);
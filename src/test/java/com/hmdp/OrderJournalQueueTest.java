@@ -0,0 +1,144 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderJournalQueue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地持久化订单队列的正确性：并发入队不丢不重，未确认的订单在重新打开后可以重放
+ */
+class OrderJournalQueueTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testConcurrentOffer() throws Exception {
+        int producers = 4;
+        int perProducer = 20000;
+        try (OrderJournalQueue queue = new OrderJournalQueue(new File(dir, "orders.journal"), 1024)) {
+            ExecutorService es = Executors.newFixedThreadPool(producers);
+            CountDownLatch latch = new CountDownLatch(producers);
+            for (int p = 0; p < producers; p++) {
+                long base = (long) p * perProducer;
+                es.submit(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        // 队列满时等待消费者确认
+                        while (!queue.offer(base + i, base + i, 1L)) {
+                            Thread.yield();
+                        }
+                    }
+                    latch.countDown();
+                });
+            }
+            // 单个消费者，槽位被反复覆盖多轮
+            Set<Long> ids = new HashSet<>();
+            List<VoucherOrder> batch = new ArrayList<>();
+            while (ids.size() < producers * perProducer) {
+                batch.clear();
+                queue.drain(batch, 100);
+                batch.forEach(order -> assertTrue(ids.add(order.getId()), "重复的订单: " + order.getId()));
+                queue.commit(false);
+            }
+            latch.await();
+            es.shutdown();
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    void testRecover() throws Exception {
+        File journal = new File(dir, "orders.journal");
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            for (long i = 1; i <= 6; i++) {
+                assertTrue(queue.offer(i, 100 + i, 1L));
+            }
+            // 确认前3个，剩下的模拟进程退出时未处理
+            List<VoucherOrder> batch = new ArrayList<>();
+            queue.drain(batch, 3);
+            queue.commit(true);
+            // 容量为8，未确认的订单不能超过容量
+            for (long i = 7; i <= 11; i++) {
+                assertTrue(queue.offer(i, 100 + i, 1L));
+            }
+            assertFalse(queue.offer(12, 112, 1L));
+        }
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            List<VoucherOrder> recovered = queue.recovered();
+            assertEquals(8, recovered.size());
+            for (int i = 0; i < recovered.size(); i++) {
+                assertEquals(4 + i, recovered.get(i).getId());
+                assertEquals(104 + i, recovered.get(i).getUserId());
+            }
+            queue.commitRecovered();
+            // 重放后从新的序号继续
+            assertTrue(queue.offer(12, 112, 1L));
+        }
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            assertEquals(1, queue.recovered().size());
+            assertEquals(12, queue.recovered().get(0).getId());
+        }
+    }
+
+    @Test
+    void testExclusive() throws Exception {
+        File journal = new File(dir, "orders.journal");
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            assertTrue(queue.offer(1, 101, 1L));
+            // 日志已被打开时不能再次打开
+            assertThrows(IOException.class, () -> new OrderJournalQueue(journal, 8));
+        }
+        // 关闭后释放锁，可以重新打开
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            assertEquals(1, queue.recovered().size());
+        }
+    }
+
+    @Test
+    void testCrashBeforeReplay() throws Exception {
+        File journal = new File(dir, "orders.journal");
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            for (long i = 1; i <= 6; i++) {
+                assertTrue(queue.offer(i, 100 + i, 1L));
+            }
+            List<VoucherOrder> batch = new ArrayList<>();
+            queue.drain(batch, 3);
+            queue.commit(true);
+        }
+        // 重新打开后，重放之前继续接收新订单，不能覆盖待重放的订单
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            assertEquals(3, queue.recovered().size());
+            for (long i = 7; i <= 11; i++) {
+                assertTrue(queue.offer(i, 100 + i, 1L));
+            }
+            assertFalse(queue.offer(12, 112, 1L));
+            // 模拟重放完成前进程崩溃，不调用 commitRecovered
+        }
+        try (OrderJournalQueue queue = new OrderJournalQueue(journal, 8)) {
+            List<VoucherOrder> recovered = queue.recovered();
+            assertEquals(8, recovered.size());
+            for (int i = 0; i < recovered.size(); i++) {
+                assertEquals(4 + i, recovered.get(i).getId());
+            }
+            // 重放完成后释放槽位
+            queue.commitRecovered();
+            assertTrue(queue.offer(12, 112, 1L));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.LatencyHistogram;
+import com.hmdp.utils.OrderJournalQueue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 对比两种订单队列模式下 VoucherOrderHandler 的吞吐量和延迟
+ * <p>
+ * 多个线程模拟抢购成功的请求入队，一个消费者按批读取并确认，不写库，只比较队列本身的开销。
+ * 延迟为入队到被消费者读取的时间。stream 模式下生产者单独执行XADD，线上XADD在秒杀脚本内完成，不会多一次往返
+ */
+@SpringBootTest
+class OrderQueueBenchmarkTest {
+
+    private static final String STREAM_KEY = "test:stream.orders:bench";
+    private static final String GROUP = "g1";
+    private static final int PRODUCERS = 4;
+    private static final int ORDERS = 20000;
+    private static final int BATCH_SIZE = 100;
+
+    @TempDir
+    File dir;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void benchmark() throws Exception {
+        LatencyHistogram streamLatency = new LatencyHistogram();
+        double streamTps = stream(streamLatency);
+        LatencyHistogram localLatency = new LatencyHistogram();
+        double localTps = local(localLatency);
+        System.out.printf("stream: throughput=%.0f orders/s, latency=%s%n", streamTps, streamLatency.stats());
+        System.out.printf("local : throughput=%.0f orders/s, latency=%s%n", localTps, localLatency.stats());
+        assertTrue(localTps > streamTps);
+    }
+
+    private double stream(LatencyHistogram latency) throws Exception {
+        stringRedisTemplate.delete(STREAM_KEY);
+        stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                .xGroupCreate(STREAM_KEY.getBytes(StandardCharsets.UTF_8), GROUP, ReadOffset.from("0"), true));
+        long begin = System.nanoTime();
+        ExecutorService producers = produce(i -> stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                .in(STREAM_KEY).ofMap(Collections.singletonMap("t", String.valueOf(System.nanoTime())))));
+        int consumed = 0;
+        while (consumed < ORDERS) {
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(GROUP, "c1"),
+                    StreamReadOptions.empty().count(BATCH_SIZE).block(Duration.ofMillis(100)),
+                    StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()));
+            if (list == null || list.isEmpty()) {
+                continue;
+            }
+            long now = System.nanoTime();
+            list.forEach(record -> latency.record(now - Long.parseLong(record.getValue().get("t").toString())));
+            stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP,
+                    list.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+            consumed += list.size();
+        }
+        long elapsed = System.nanoTime() - begin;
+        producers.shutdown();
+        stringRedisTemplate.delete(STREAM_KEY);
+        return ORDERS * 1e9 / elapsed;
+    }
+
+    private double local(LatencyHistogram latency) throws Exception {
+        try (OrderJournalQueue queue = new OrderJournalQueue(new File(dir, "orders.journal"), 65536)) {
+            long begin = System.nanoTime();
+            // 订单id字段存放入队时间
+            ExecutorService producers = produce(i -> {
+                while (!queue.offer(System.nanoTime(), i, 1L)) {
+                    Thread.yield();
+                }
+            });
+            int consumed = 0;
+            List<VoucherOrder> batch = new ArrayList<>(BATCH_SIZE);
+            while (consumed < ORDERS) {
+                batch.clear();
+                if (queue.drain(batch, BATCH_SIZE) == 0) {
+                    Thread.yield();
+                    continue;
+                }
+                long now = System.nanoTime();
+                batch.forEach(order -> latency.record(now - order.getId()));
+                queue.commit(false);
+                consumed += batch.size();
+            }
+            long elapsed = System.nanoTime() - begin;
+            producers.shutdown();
+            return ORDERS * 1e9 / elapsed;
+        }
+    }
+
+    /**
+     * 多个线程并发入队，立即返回，由调用者消费
+     */
+    private ExecutorService produce(IntConsumer offer) {
+        ExecutorService es = Executors.newFixedThreadPool(PRODUCERS);
+        for (int p = 0; p < PRODUCERS; p++) {
+            int base = p * (ORDERS / PRODUCERS);
+            es.submit(() -> {
+                for (int i = 0; i < ORDERS / PRODUCERS; i++) {
+                    offer.accept(base + i);
+                }
+            });
+        }
+        return es;
+    }
+}
@@ -0,0 +1,199 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.StreamPartitioner;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 订单消息队列分区后，经过秒杀脚本、分区消费者和pending接管，每个订单都只写库一次
+ * <p>
+ * 多张秒杀券并发抢购，订单按voucherId落在各自的分区，由 VoucherOrderHandler 写库；
+ * 另外模拟一个读取消息后宕机的消费者，它pending的订单由 reclaimPending 接管写库
+ */
+@SpringBootTest(properties = {
+        "hmdp.seckill.order.partitions=4",
+        "hmdp.seckill.order.queue=stream",
+        "hmdp.seckill.order.reclaim-idle-millis=1000",
+        "hmdp.seckill.order.reclaim-interval-millis=500",
+        "hmdp.seckill.order.archive.enabled=false",
+        "hmdp.seckill.reconcile.enabled=false"
+})
+class OrderStreamPartitionTest {
+
+    private static final int PARTITIONS = 4;
+    private static final String GROUP = "g1";
+    private static final int VOUCHERS = 8;
+    private static final int STOCK = 50;
+    private static final int USERS = 200;
+    private static final long WAIT_MILLIS = 30000;
+
+    /**
+     * 写入一条订单消息，并在同一个脚本中由一个不存在的消费者读取，使其停留在pending-list中
+     */
+    private static final DefaultRedisScript<Long> ADD_PENDING_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('xadd', KEYS[1], '*', 'userId', ARGV[2], 'voucherId', ARGV[3], 'ts', ARGV[4], 'seq', ARGV[5]) " +
+                    "redis.call('xreadgroup', 'GROUP', ARGV[1], 'dead-consumer', 'COUNT', 1, 'STREAMS', KEYS[1], '>') " +
+                    "return 1", Long.class);
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final StreamPartitioner orderStreams = new StreamPartitioner(STREAM_ORDERS_KEY, PARTITIONS);
+
+    private final List<Long> voucherIds = new ArrayList<>();
+
+    @Test
+    void testEveryOrderPersistedOnce() throws InterruptedException {
+        for (int i = 0; i < VOUCHERS; i++) {
+            voucherIds.add(addSeckillVoucher(STOCK));
+        }
+        // 1.每个用户并发抢购每张券，每张券只有 STOCK 个用户成功
+        ExecutorService es = Executors.newFixedThreadPool(64);
+        CountDownLatch latch = new CountDownLatch(USERS * VOUCHERS);
+        Map<Long, Set<Long>> orderIds = new ConcurrentHashMap<>();
+        for (long userId = 1; userId <= USERS; userId++) {
+            for (Long voucherId : voucherIds) {
+                long uid = userId;
+                es.submit(() -> {
+                    try {
+                        UserDTO user = new UserDTO();
+                        user.setId(uid);
+                        UserHolder.saveUser(user);
+                        Result result = voucherOrderService.seckillVoucher(voucherId);
+                        if (result.getSuccess()) {
+                            orderIds.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet()).add((Long) result.getData());
+                        }
+                    } finally {
+                        UserHolder.removeUser();
+                        latch.countDown();
+                    }
+                });
+            }
+        }
+        latch.await();
+        es.shutdown();
+        for (Long voucherId : voucherIds) {
+            assertEquals(STOCK, orderIds.get(voucherId).size());
+        }
+
+        // 2.消息按voucherId落在各自的分区，且用到了多个分区
+        Set<String> usedPartitions = new HashSet<>();
+        for (String streamKey : orderStreams.keys()) {
+            for (MapRecord<String, Object, Object> record : stringRedisTemplate.opsForStream().range(streamKey, Range.unbounded())) {
+                Long voucherId = Long.valueOf(record.getValue().get("voucherId").toString());
+                if (voucherIds.contains(voucherId)) {
+                    assertEquals(orderStreams.keyOf(voucherId), streamKey);
+                    usedPartitions.add(streamKey);
+                }
+            }
+        }
+        assertTrue(usedPartitions.size() > 1);
+
+        // 3.模拟宕机的消费者，读取了一个订单但没有确认
+        Long reclaimVoucherId = addSeckillVoucher(STOCK);
+        voucherIds.add(reclaimVoucherId);
+        long reclaimedId = redisIdWorker.nextId("order");
+        stringRedisTemplate.execute(ADD_PENDING_SCRIPT, Collections.singletonList(orderStreams.keyOf(reclaimVoucherId)),
+                GROUP, String.valueOf(USERS + 1), reclaimVoucherId.toString(),
+                String.valueOf(RedisIdWorker.timestampOf(reclaimedId)), String.valueOf(RedisIdWorker.sequenceOf(reclaimedId)));
+        orderIds.put(reclaimVoucherId, Collections.singleton(reclaimedId));
+
+        // 4.等待所有订单写库，每个订单恰好一行，库存按订单数扣减
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        int expected = VOUCHERS * STOCK + 1;
+        int persisted;
+        do {
+            Thread.sleep(200);
+            persisted = voucherOrderService.query().in("voucher_id", voucherIds).count();
+        } while (persisted < expected && System.currentTimeMillis() < deadline);
+        assertEquals(expected, persisted);
+        for (Long voucherId : voucherIds) {
+            List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+            Set<Long> ids = new HashSet<>();
+            orders.forEach(order -> ids.add(order.getId()));
+            assertEquals(orderIds.get(voucherId), ids);
+            assertEquals(STOCK - ids.size(), seckillVoucherService.getById(voucherId).getStock());
+        }
+        // 5.所有消息都已确认
+        for (String streamKey : orderStreams.keys()) {
+            assertEquals(0, stringRedisTemplate.opsForStream().pending(streamKey, GROUP).getTotalPendingMessages());
+        }
+    }
+
+    private Long addSeckillVoucher(int stock) {
+        Voucher voucher = new Voucher()
+                .setShopId(1L)
+                .setTitle("分区测试券")
+                .setPayValue(100L)
+                .setActualValue(200L)
+                .setType(1)
+                .setStock(stock)
+                .setBeginTime(LocalDateTime.now().minusHours(1))
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    @AfterEach
+    void cleanUp() {
+        if (voucherIds.isEmpty()) {
+            return;
+        }
+        voucherOrderService.remove(voucherOrderService.query().in("voucher_id", voucherIds).getWrapper());
+        seckillVoucherService.removeByIds(voucherIds);
+        voucherService.removeByIds(voucherIds);
+        List<String> keys = new ArrayList<>();
+        for (Long voucherId : voucherIds) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+            keys.add(SECKILL_ORDER_KEY + voucherId);
+            keys.add(SECKILL_VOUCHER_KEY + voucherId);
+        }
+        stringRedisTemplate.delete(keys);
+    }
+}
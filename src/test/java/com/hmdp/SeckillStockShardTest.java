@@ -0,0 +1,149 @@
+package com.hmdp;
+
+import com.hmdp.service.impl.VoucherServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_META_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分片库存在并发抢购下不超卖、一人一单
+ */
+@SpringBootTest
+class SeckillStockShardTest {
+
+    private static final long VOUCHER_ID = 900001L;
+    private static final int STOCK = 100;
+    private static final int SHARDS = 8;
+    private static final int USERS = 1000;
+    private static final String STREAM_KEY = "test:stream.orders:shard";
+
+    private static final String SEQUENCE_KEY = "test:icr:order";
+
+    private static final String STATUS_KEY = "test:order:status";
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private VoucherServiceImpl voucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testNoOversell() throws InterruptedException {
+        ReflectionTestUtils.setField(voucherService, "stockShards", SHARDS);
+        voucherService.initSeckillStock(VOUCHER_ID, STOCK);
+
+        // 每个用户并发抢3次，覆盖分片耗尽后向相邻分片借库存以及重复下单的情况
+        ExecutorService es = Executors.newFixedThreadPool(200);
+        CountDownLatch latch = new CountDownLatch(USERS * 3);
+        AtomicInteger success = new AtomicInteger();
+        Set<Long> buyers = ConcurrentHashMap.newKeySet();
+        for (int round = 0; round < 3; round++) {
+            for (long userId = 1; userId <= USERS; userId++) {
+                long uid = userId;
+                es.submit(() -> {
+                    try {
+                        List<?> r = stringRedisTemplate.execute(SECKILL_SCRIPT, Arrays.asList(STREAM_KEY, SEQUENCE_KEY, STATUS_KEY),
+                                String.valueOf(VOUCHER_ID), String.valueOf(uid), "0", "60");
+                        if (r != null && (Long) r.get(0) == 0) {
+                            success.incrementAndGet();
+                            buyers.add(uid);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+        }
+        latch.await();
+        es.shutdown();
+
+        // 成功的订单数恰好等于库存且没有重复用户，所有分片都被扣到0且没有负数
+        assertEquals(STOCK, success.get());
+        assertEquals(STOCK, buyers.size());
+        int remaining = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            int shardStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID + ":" + i));
+            assertTrue(shardStock >= 0);
+            remaining += shardStock;
+        }
+        assertEquals(0, remaining);
+        assertEquals(STOCK, stringRedisTemplate.opsForStream().size(STREAM_KEY));
+        // 只有成功的请求消耗序列号
+        assertEquals(String.valueOf(STOCK), stringRedisTemplate.opsForValue().get(SEQUENCE_KEY));
+        // 每个成功的订单都记录为排队中
+        assertEquals(STOCK, stringRedisTemplate.opsForHash().size(STATUS_KEY));
+    }
+
+    @Test
+    void testReinitialize() {
+        // 分片模式下有10个用户下单
+        ReflectionTestUtils.setField(voucherService, "stockShards", SHARDS);
+        voucherService.initSeckillStock(VOUCHER_ID, STOCK);
+        for (long userId = 1; userId <= 10; userId++) {
+            assertEquals(0L, seckill(userId));
+        }
+        // 改为不分片后重新初始化，旧的分片key全部删除，已下单的用户迁移到单个集合中
+        ReflectionTestUtils.setField(voucherService, "stockShards", 1);
+        voucherService.initSeckillStock(VOUCHER_ID, STOCK);
+        assertFalse(stringRedisTemplate.hasKey(SECKILL_STOCK_META_KEY + VOUCHER_ID));
+        assertTrue(stringRedisTemplate.keys(SECKILL_STOCK_KEY + VOUCHER_ID + ":*").isEmpty());
+        assertTrue(stringRedisTemplate.keys(SECKILL_ORDER_KEY + VOUCHER_ID + ":*").isEmpty());
+        assertEquals(String.valueOf(STOCK), stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertEquals(10L, stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + VOUCHER_ID));
+        assertEquals(2L, seckill(1));
+        // 再改为分片，单个key被删除，用户迁移到各自的分片集合
+        ReflectionTestUtils.setField(voucherService, "stockShards", 4);
+        voucherService.initSeckillStock(VOUCHER_ID, STOCK);
+        assertFalse(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + VOUCHER_ID));
+        assertFalse(stringRedisTemplate.hasKey(SECKILL_ORDER_KEY + VOUCHER_ID));
+        assertEquals(2L, seckill(1));
+        assertEquals(0L, seckill(11));
+    }
+
+    private long seckill(long userId) {
+        List<?> r = stringRedisTemplate.execute(SECKILL_SCRIPT, Arrays.asList(STREAM_KEY, SEQUENCE_KEY, STATUS_KEY),
+                String.valueOf(VOUCHER_ID), String.valueOf(userId), "0", "60");
+        return (Long) r.get(0);
+    }
+
+    @AfterEach
+    void cleanUp() {
+        Set<String> keys = stringRedisTemplate.keys(SECKILL_STOCK_KEY + VOUCHER_ID + ":*");
+        keys.addAll(stringRedisTemplate.keys(SECKILL_ORDER_KEY + VOUCHER_ID + ":*"));
+        keys.add(SECKILL_STOCK_META_KEY + VOUCHER_ID);
+        keys.add(SECKILL_STOCK_KEY + VOUCHER_ID);
+        keys.add(SECKILL_ORDER_KEY + VOUCHER_ID);
+        keys.add(STREAM_KEY);
+        keys.add(SEQUENCE_KEY);
+        keys.add(STATUS_KEY);
+        stringRedisTemplate.delete(keys);
+    }
+}